@@ -0,0 +1,87 @@
+package p2p.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.service.ContentManifest;
+import p2p.service.FileStore;
+import p2p.service.PieceManifest;
+
+/**
+ * Checksumming 32 MB fed in 64 KB buffers, as uploads arrive:
+ * <ul>
+ *   <li>{@code sha256} - the whole-file digest alone, which is what uploads computed before manifests</li>
+ *   <li>{@code crc32c} and {@code crc32} - the two CRCs the JDK offers</li>
+ *   <li>{@code manifest} - everything a stored file now gets: SHA-256 and CRC32C of the file and of each piece</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChecksumBenchmark {
+
+    private static final int SIZE = 32 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private byte[] content;
+
+    @Setup
+    public void createContent() {
+        content = new byte[SIZE];
+        new Random(42).nextBytes(content);
+    }
+
+    @Benchmark
+    public byte[] sha256() {
+        MessageDigest digest = FileStore.newDigest();
+        for (int offset = 0; offset < SIZE; offset += BUFFER_SIZE) {
+            digest.update(content, offset, BUFFER_SIZE);
+        }
+        return digest.digest();
+    }
+
+    @Benchmark
+    public long crc32c() {
+        CRC32C crc = new CRC32C();
+        for (int offset = 0; offset < SIZE; offset += BUFFER_SIZE) {
+            crc.update(content, offset, BUFFER_SIZE);
+        }
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public long crc32() {
+        CRC32 crc = new CRC32();
+        for (int offset = 0; offset < SIZE; offset += BUFFER_SIZE) {
+            crc.update(content, offset, BUFFER_SIZE);
+        }
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public ContentManifest manifest() {
+        ContentManifest.Builder builder = new ContentManifest.Builder(PieceManifest.DEFAULT_PIECE_SIZE);
+        for (int offset = 0; offset < SIZE; offset += BUFFER_SIZE) {
+            builder.update(ByteBuffer.wrap(content, offset, BUFFER_SIZE));
+        }
+        return builder.build();
+    }
+}
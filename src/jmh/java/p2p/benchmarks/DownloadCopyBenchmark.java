@@ -0,0 +1,120 @@
+package p2p.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.utils.TransferUtils;
+
+/**
+ * The copy loops that put file bytes on a loopback socket, with a thread on
+ * the other end discarding everything it reads:
+ * <ul>
+ *   <li>{@code streamCopy} - TransferUtils.copy into a stream, as DownloadHandler does with the HttpServer body</li>
+ *   <li>{@code sendfile} - FileChannel.transferTo straight to the socket channel, as FileSharer does</li>
+ *   <li>{@code byteArrayLoop} - the original 4 KB FileInputStream loop, as a baseline</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadCopyBenchmark {
+
+    @Param({"65536", "16777216"})
+    public int fileSize;
+
+    private Path file;
+    private FileChannel fileChannel;
+    private ServerSocketChannel listener;
+    private SocketChannel socket;
+    private OutputStream socketStream;
+    private Thread drain;
+
+    @Setup
+    public void open() throws IOException {
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        file = Files.createTempFile("peerlink-bench", ".bin");
+        Files.write(file, content);
+        fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        socket = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel peer = listener.accept();
+        drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try (peer) {
+                while (peer.read(buffer) >= 0) buffer.clear();
+            } catch (IOException ignored) {
+                // socket closed at teardown
+            }
+        }, "bench-drain");
+        drain.setDaemon(true);
+        drain.start();
+        socketStream = Channels.newOutputStream(socket);
+    }
+
+    @TearDown
+    public void close() throws Exception {
+        socket.close();
+        drain.join(1000);
+        listener.close();
+        fileChannel.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long streamCopy() throws IOException {
+        return TransferUtils.copy(fileChannel, 0, fileSize, socketStream);
+    }
+
+    @Benchmark
+    public long sendfile() throws IOException {
+        long sent = 0;
+        while (sent < fileSize) {
+            sent += fileChannel.transferTo(sent, fileSize - sent, socket);
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public long byteArrayLoop() throws IOException {
+        long total = 0;
+        try (FileInputStream in = new FileInputStream(file.toFile())) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                socketStream.write(buffer, 0, n);
+                total += n;
+            }
+        }
+        return total;
+    }
+}
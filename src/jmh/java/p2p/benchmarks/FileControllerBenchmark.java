@@ -0,0 +1,102 @@
+package p2p.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.config.ExecutionConfig;
+import p2p.config.StorageConfig;
+import p2p.controller.FileController;
+
+/**
+ * Upload and download through an in-process FileController on loopback,
+ * using the JDK HttpClient. Divide the payload size by the score for
+ * throughput. Shares are kept under target/, so the benchmark never
+ * touches the real upload directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileControllerBenchmark {
+
+    private static final String BOUNDARY = "jmhboundary";
+
+    @Param({"1048576", "67108864"})
+    public int payloadSize;
+
+    private FileController controller;
+    private HttpClient client;
+    private byte[] uploadBody;
+    private URI uploadUri;
+    private URI downloadUri;
+
+    @Setup
+    public void start() throws Exception {
+        controller = new FileController(0, Path.of("target", "jmh-uploads"), ExecutionConfig.fromEnvironment(),
+                new StorageConfig(0, 0, 0, 1000));
+        controller.start();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(payloadSize + 256);
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(payload);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        uploadBody = body.toByteArray();
+
+        uploadUri = URI.create("http://127.0.0.1:" + controller.getPort() + "/upload");
+        downloadUri = URI.create("http://127.0.0.1:" + controller.getPort() + "/download/" + upload());
+    }
+
+    @TearDown
+    public void stop() {
+        controller.stop();
+    }
+
+    /** Every upload is the same content, so after the first one this measures the dedup path. */
+    @Benchmark
+    public String upload() throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(uploadUri)
+                        .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(uploadBody))
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) throw new IOException("Upload failed: " + response.statusCode());
+        String json = response.body();
+        int start = json.indexOf("\"id\": \"") + 7;
+        return json.substring(start, json.indexOf('"', start));
+    }
+
+    @Benchmark
+    public int download() throws IOException, InterruptedException {
+        HttpResponse<Void> response = client.send(HttpRequest.newBuilder(downloadUri).build(),
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) throw new IOException("Download failed: " + response.statusCode());
+        return response.statusCode();
+    }
+}
@@ -0,0 +1,82 @@
+package p2p.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.utils.MultipartParser;
+
+/**
+ * Multipart parsing over in-memory bodies of different sizes, and the raw
+ * boundary scan on its own. The body is random bytes, so the scan sees the
+ * usual scattering of partial boundary matches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MultipartParserBenchmark {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @Param({"1024", "1048576", "33554432"})
+    public int payloadSize;
+
+    private byte[] body;
+    private byte[] payload;
+    private byte[] delimiter;
+
+    @Setup
+    public void createBody() throws IOException {
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        delimiter = ("\r\n--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payloadSize + 512);
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"note\"\r\n\r\nhello\r\n"
+                + "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        body = out.toByteArray();
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        long[] total = new long[1];
+        byte[] sink = new byte[MultipartParser.DEFAULT_BUFFER_SIZE];
+        new MultipartParser(new ByteArrayInputStream(body), BOUNDARY).parse((part, content) -> total[0] += drain(content, sink));
+        return total[0];
+    }
+
+    /** Scans the whole payload for a delimiter that is not in it: the worst case per buffer fill. */
+    @Benchmark
+    public int findSequence() {
+        return MultipartParser.findSequence(payload, 0, payload.length, delimiter);
+    }
+
+    private static long drain(InputStream content, byte[] sink) throws IOException {
+        long total = 0;
+        int n;
+        while ((n = content.read(sink)) != -1) total += n;
+        return total;
+    }
+}
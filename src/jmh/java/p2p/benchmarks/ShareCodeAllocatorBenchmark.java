@@ -0,0 +1,76 @@
+package p2p.benchmarks;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.utils.ShareCodeAllocator;
+
+/**
+ * Cost of taking a share code and giving it back, with the code space held
+ * at a fixed occupancy. {@code randomProbe} is the old approach (a new Random
+ * per attempt, retrying until a free code turns up), kept as a baseline on a
+ * ConcurrentHashMap since the original HashMap is not safe to share.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ShareCodeAllocatorBenchmark {
+
+    private static final int MIN = ShareCodeAllocator.DEFAULT_MIN_CODE;
+    private static final int MAX = ShareCodeAllocator.DEFAULT_MAX_CODE;
+
+    @Param({"10", "90", "99"})
+    public int occupancyPercent;
+
+    private ShareCodeAllocator allocator;
+    private Map<Integer, Boolean> taken;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        int inUse = (MAX - MIN + 1) * occupancyPercent / 100;
+        allocator = new ShareCodeAllocator();
+        for (int i = 0; i < inUse; i++) allocator.allocate();
+
+        taken = new ConcurrentHashMap<>();
+        Random random = new Random(1);
+        while (taken.size() < inUse) taken.put(MIN + random.nextInt(MAX - MIN + 1), Boolean.TRUE);
+    }
+
+    @Benchmark
+    public int allocator() {
+        int code = allocator.allocate();
+        allocator.release(code);
+        return code;
+    }
+
+    @Benchmark
+    public int randomProbe() {
+        while (true) {
+            int code = new Random().nextInt(MAX - MIN) + MIN;
+            if (taken.putIfAbsent(code, Boolean.TRUE) == null) {
+                taken.remove(code);
+                return code;
+            }
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package p2p;
 
+import org.springframework.context.ConfigurableApplicationContext;
+
 import p2p.controller.FileController;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 
 /**
  * PeerLink - P2P File Sharing Application
@@ -12,16 +15,26 @@ public class App {
             // Use Render's dynamic PORT or fallback to 8080 for local testing
             int port = Integer.parseInt(System.getenv().getOrDefault("PORT", "8080"));
 
-            // Start the API server on the chosen port
-            FileController fileController = new FileController(port);
-            fileController.start();
+            // PEERLINK_SERVER=webflux serves /upload and /download on Reactor Netty instead of HttpServer
+            String mode = System.getenv().getOrDefault("PEERLINK_SERVER", "httpserver");
+            Runnable stop;
+            if (mode.equalsIgnoreCase("webflux")) {
+                ConfigurableApplicationContext context = startWebFlux(port);
+                stop = context::close;
+            } else if (mode.equalsIgnoreCase("httpserver")) {
+                FileController fileController = new FileController(port);
+                fileController.start();
+                stop = fileController::stop;
+            } else {
+                throw new IllegalArgumentException("PEERLINK_SERVER must be httpserver or webflux, got " + mode);
+            }
 
-            System.out.println("PeerLink server started on port " + port);
+            System.out.println("PeerLink server (" + mode.toLowerCase() + ") started on port " + port);
             System.out.println("UI available at http://localhost:3000");
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("Shutting down server...");
-                fileController.stop();
+                stop.run();
             }));
 
             // Keep server running (instead of waiting for Enter key)
@@ -32,4 +45,21 @@ public class App {
             e.printStackTrace();
         }
     }
+
+    /** The webflux mode is compiled in only by {@code mvn -Pwebflux}, so it is looked up by name. */
+    private static ConfigurableApplicationContext startWebFlux(int port) {
+        Class<?> config;
+        try {
+            config = Class.forName("p2p.config.ReactiveServerConfig");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("PEERLINK_SERVER=webflux needs a build made with mvn -Pwebflux");
+        }
+        try {
+            return (ConfigurableApplicationContext) config.getMethod("start", int.class).invoke(null, port);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
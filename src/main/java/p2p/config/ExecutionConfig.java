@@ -0,0 +1,144 @@
+package p2p.config;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How request handlers are executed.
+ *
+ * Read from the environment:
+ * <ul>
+ *   <li>{@code PEERLINK_EXECUTOR} - {@code virtual}, {@code pool} or {@code auto} (default).
+ *       Auto uses a virtual thread per task when the JVM supports it (Java 21+)
+ *       and falls back to the bounded pool otherwise.</li>
+ *   <li>{@code PEERLINK_POOL_SIZE} - platform threads in the fallback pool (default 64).</li>
+ *   <li>{@code PEERLINK_MAX_CONCURRENT} - requests handled at once before new ones
+ *       wait for a slot (default 10000 with virtual threads, the pool size otherwise).</li>
+ *   <li>{@code PEERLINK_ADMISSION_TIMEOUT_MS} - how long a request waits for a slot
+ *       before it is answered with 503 (default 5000).</li>
+ *   <li>{@code PEERLINK_QUEUE_CAPACITY} - requests the pool holds while all its threads
+ *       are busy; more are answered with 503 (default 256).</li>
+ *   <li>{@code PEERLINK_BACKLOG} - TCP accept backlog (default 1024).</li>
+ * </ul>
+ */
+public class ExecutionConfig {
+
+    public enum Mode { AUTO, VIRTUAL, POOL }
+
+    public static final int DEFAULT_POOL_SIZE = 64;
+    public static final int DEFAULT_VIRTUAL_MAX_CONCURRENT = 10_000;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private final Mode mode;
+    private final int poolSize;
+    private final int maxConcurrent;
+    private final long admissionTimeoutMillis;
+    private final int backlog;
+    private final int queueCapacity;
+
+    public ExecutionConfig(Mode mode, int poolSize, int maxConcurrent, long admissionTimeoutMillis, int backlog) {
+        this(mode, poolSize, maxConcurrent, admissionTimeoutMillis, backlog, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ExecutionConfig(Mode mode, int poolSize, int maxConcurrent, long admissionTimeoutMillis, int backlog,
+                           int queueCapacity) {
+        if (poolSize < 1) throw new IllegalArgumentException("Pool size must be positive");
+        if (queueCapacity < 1) throw new IllegalArgumentException("Queue capacity must be positive");
+        this.mode = mode == Mode.AUTO ? (virtualThreadsAvailable() ? Mode.VIRTUAL : Mode.POOL) : mode;
+        if (this.mode == Mode.VIRTUAL && !virtualThreadsAvailable()) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer");
+        }
+        this.poolSize = poolSize;
+        this.maxConcurrent = maxConcurrent > 0
+                ? maxConcurrent
+                : (this.mode == Mode.VIRTUAL ? DEFAULT_VIRTUAL_MAX_CONCURRENT : poolSize);
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+        this.backlog = backlog;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public static ExecutionConfig fromEnvironment() {
+        Mode mode = Mode.valueOf(env("PEERLINK_EXECUTOR", "auto").toUpperCase(Locale.ROOT));
+        int poolSize = Integer.parseInt(env("PEERLINK_POOL_SIZE", String.valueOf(DEFAULT_POOL_SIZE)));
+        int maxConcurrent = Integer.parseInt(env("PEERLINK_MAX_CONCURRENT", "0"));
+        long admissionTimeout = Long.parseLong(env("PEERLINK_ADMISSION_TIMEOUT_MS", "5000"));
+        int backlog = Integer.parseInt(env("PEERLINK_BACKLOG", "1024"));
+        int queueCapacity = Integer.parseInt(env("PEERLINK_QUEUE_CAPACITY", String.valueOf(DEFAULT_QUEUE_CAPACITY)));
+        return new ExecutionConfig(mode, poolSize, maxConcurrent, admissionTimeout, backlog, queueCapacity);
+    }
+
+    private static String env(String name, String defaultValue) {
+        return System.getenv().getOrDefault(name, defaultValue);
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        return virtualExecutorFactory() != null;
+    }
+
+    private static Method virtualExecutorFactory() {
+        try {
+            return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the executor for this mode. The virtual-thread factory is looked
+     * up reflectively so the code still compiles and runs on Java 17. The pool
+     * throws RejectedExecutionException once its queue is full.
+     */
+    public ExecutorService createExecutor(String threadNamePrefix) {
+        if (mode == Mode.VIRTUAL) {
+            try {
+                return (ExecutorService) virtualExecutorFactory().invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not create virtual thread executor", e);
+            }
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public long getAdmissionTimeoutMillis() {
+        return admissionTimeoutMillis;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public String toString() {
+        return (mode == Mode.POOL ? "pool of " + poolSize + " threads, queue of " + queueCapacity : "virtual threads")
+                + ", max " + maxConcurrent + " concurrent";
+    }
+}
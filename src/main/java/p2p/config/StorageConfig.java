@@ -0,0 +1,116 @@
+package p2p.config;
+
+/**
+ * Retention limits for uploaded files, and how much of them to keep in memory.
+ *
+ * Read from the environment:
+ * <ul>
+ *   <li>{@code PEERLINK_DEFAULT_TTL_SECONDS} - lifetime of a share that does not ask
+ *       for one (default 0, never expires).</li>
+ *   <li>{@code PEERLINK_MAX_TTL_SECONDS} - upper bound for a requested lifetime
+ *       (default 0, no bound).</li>
+ *   <li>{@code PEERLINK_DISK_QUOTA_BYTES} - total size of stored files; beyond it the
+ *       least recently downloaded shares are removed (default 0, unlimited).</li>
+ *   <li>{@code PEERLINK_SWEEP_INTERVAL_MS} - how often expired shares are reclaimed
+ *       (default 1000).</li>
+ *   <li>{@code PEERLINK_HOT_CACHE_BYTES} - off-heap memory for the contents of
+ *       frequently downloaded files (default 64 MiB, 0 disables the cache).</li>
+ *   <li>{@code PEERLINK_HOT_CACHE_MAX_FILE_BYTES} - larger files are always read
+ *       from disk (default 8 MiB).</li>
+ *   <li>{@code PEERLINK_MAX_SESSION_BYTES} - largest file an upload session may
+ *       announce (default 16 GiB).</li>
+ *   <li>{@code PEERLINK_SESSION_IDLE_SECONDS} - upload sessions that receive no
+ *       chunk for this long are abandoned and their files deleted (default 3600).</li>
+ * </ul>
+ */
+public class StorageConfig {
+
+    private static final long DEFAULT_HOT_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_HOT_CACHE_MAX_FILE_BYTES = 8L * 1024 * 1024;
+    private static final long DEFAULT_MAX_SESSION_BYTES = 16L * 1024 * 1024 * 1024;
+    private static final long DEFAULT_SESSION_IDLE_SECONDS = 3600;
+
+    private final long defaultTtlSeconds;
+    private final long maxTtlSeconds;
+    private final long diskQuotaBytes;
+    private final long sweepIntervalMillis;
+    private final long hotCacheBytes;
+    private final long hotCacheMaxFileBytes;
+    private final long maxSessionBytes;
+    private final long sessionIdleMillis;
+
+    public StorageConfig(long defaultTtlSeconds, long maxTtlSeconds, long diskQuotaBytes, long sweepIntervalMillis) {
+        this(defaultTtlSeconds, maxTtlSeconds, diskQuotaBytes, sweepIntervalMillis,
+                DEFAULT_HOT_CACHE_BYTES, DEFAULT_HOT_CACHE_MAX_FILE_BYTES);
+    }
+
+    public StorageConfig(long defaultTtlSeconds, long maxTtlSeconds, long diskQuotaBytes, long sweepIntervalMillis,
+                         long hotCacheBytes, long hotCacheMaxFileBytes) {
+        this(defaultTtlSeconds, maxTtlSeconds, diskQuotaBytes, sweepIntervalMillis, hotCacheBytes, hotCacheMaxFileBytes,
+                DEFAULT_MAX_SESSION_BYTES, DEFAULT_SESSION_IDLE_SECONDS * 1000);
+    }
+
+    public StorageConfig(long defaultTtlSeconds, long maxTtlSeconds, long diskQuotaBytes, long sweepIntervalMillis,
+                         long hotCacheBytes, long hotCacheMaxFileBytes, long maxSessionBytes, long sessionIdleMillis) {
+        if (sweepIntervalMillis <= 0) throw new IllegalArgumentException("Sweep interval must be positive");
+        if (sessionIdleMillis <= 0) throw new IllegalArgumentException("Session idle timeout must be positive");
+        this.defaultTtlSeconds = defaultTtlSeconds;
+        this.maxTtlSeconds = maxTtlSeconds;
+        this.diskQuotaBytes = diskQuotaBytes;
+        this.sweepIntervalMillis = sweepIntervalMillis;
+        this.hotCacheBytes = hotCacheBytes;
+        this.hotCacheMaxFileBytes = hotCacheMaxFileBytes;
+        this.maxSessionBytes = maxSessionBytes;
+        this.sessionIdleMillis = sessionIdleMillis;
+    }
+
+    public static StorageConfig fromEnvironment() {
+        return new StorageConfig(
+                Long.parseLong(env("PEERLINK_DEFAULT_TTL_SECONDS", "0")),
+                Long.parseLong(env("PEERLINK_MAX_TTL_SECONDS", "0")),
+                Long.parseLong(env("PEERLINK_DISK_QUOTA_BYTES", "0")),
+                Long.parseLong(env("PEERLINK_SWEEP_INTERVAL_MS", "1000")),
+                Long.parseLong(env("PEERLINK_HOT_CACHE_BYTES", Long.toString(DEFAULT_HOT_CACHE_BYTES))),
+                Long.parseLong(env("PEERLINK_HOT_CACHE_MAX_FILE_BYTES", Long.toString(DEFAULT_HOT_CACHE_MAX_FILE_BYTES))),
+                Long.parseLong(env("PEERLINK_MAX_SESSION_BYTES", Long.toString(DEFAULT_MAX_SESSION_BYTES))),
+                Long.parseLong(env("PEERLINK_SESSION_IDLE_SECONDS", Long.toString(DEFAULT_SESSION_IDLE_SECONDS))) * 1000);
+    }
+
+    private static String env(String name, String defaultValue) {
+        return System.getenv().getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Turns a requested lifetime (null or 0 for the default) into an absolute
+     * expiry time, or 0 if the share never expires.
+     */
+    public long expiresAt(Long requestedTtlSeconds, long now) {
+        long ttl = requestedTtlSeconds == null || requestedTtlSeconds <= 0 ? defaultTtlSeconds : requestedTtlSeconds;
+        if (maxTtlSeconds > 0 && (ttl <= 0 || ttl > maxTtlSeconds)) ttl = maxTtlSeconds;
+        return ttl <= 0 ? 0 : now + ttl * 1000;
+    }
+
+    public long getDiskQuotaBytes() {
+        return diskQuotaBytes;
+    }
+
+    public long getSweepIntervalMillis() {
+        return sweepIntervalMillis;
+    }
+
+    public long getHotCacheBytes() {
+        return hotCacheBytes;
+    }
+
+    public long getHotCacheMaxFileBytes() {
+        return hotCacheMaxFileBytes;
+    }
+
+    public long getMaxSessionBytes() {
+        return maxSessionBytes;
+    }
+
+    public long getSessionIdleMillis() {
+        return sessionIdleMillis;
+    }
+}
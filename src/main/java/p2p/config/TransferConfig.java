@@ -0,0 +1,60 @@
+package p2p.config;
+
+/**
+ * Bandwidth limits for outgoing transfers.
+ *
+ * Read from the environment:
+ * <ul>
+ *   <li>{@code PEERLINK_RATE_LIMIT_BYTES_PER_SECOND} - total upload bandwidth shared by all
+ *       downloads (default 0, unlimited).</li>
+ *   <li>{@code PEERLINK_CLIENT_RATE_LIMIT_BYTES_PER_SECOND} - bandwidth for all downloads
+ *       by one client address (default 0, unlimited).</li>
+ *   <li>{@code PEERLINK_SMALL_TRANSFER_BYTES} - transfers up to this size get a larger
+ *       share of the bandwidth so they finish quickly (default 1 MiB).</li>
+ * </ul>
+ * With neither limit set transfers are not shaped at all.
+ */
+public class TransferConfig {
+
+    public static final long DEFAULT_SMALL_TRANSFER_BYTES = 1024 * 1024;
+
+    private final long globalBytesPerSecond;
+    private final long clientBytesPerSecond;
+    private final long smallTransferBytes;
+
+    public TransferConfig(long globalBytesPerSecond, long clientBytesPerSecond, long smallTransferBytes) {
+        if (globalBytesPerSecond < 0 || clientBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate limits must not be negative");
+        }
+        this.globalBytesPerSecond = globalBytesPerSecond;
+        this.clientBytesPerSecond = clientBytesPerSecond;
+        this.smallTransferBytes = smallTransferBytes;
+    }
+
+    public static TransferConfig fromEnvironment() {
+        return new TransferConfig(
+                Long.parseLong(env("PEERLINK_RATE_LIMIT_BYTES_PER_SECOND", "0")),
+                Long.parseLong(env("PEERLINK_CLIENT_RATE_LIMIT_BYTES_PER_SECOND", "0")),
+                Long.parseLong(env("PEERLINK_SMALL_TRANSFER_BYTES", String.valueOf(DEFAULT_SMALL_TRANSFER_BYTES))));
+    }
+
+    private static String env(String name, String defaultValue) {
+        return System.getenv().getOrDefault(name, defaultValue);
+    }
+
+    public long getGlobalBytesPerSecond() {
+        return globalBytesPerSecond;
+    }
+
+    public long getClientBytesPerSecond() {
+        return clientBytesPerSecond;
+    }
+
+    public long getSmallTransferBytes() {
+        return smallTransferBytes;
+    }
+
+    public boolean isShaping() {
+        return globalBytesPerSecond > 0 || clientBytesPerSecond > 0;
+    }
+}
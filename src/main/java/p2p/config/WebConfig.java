@@ -4,14 +4,23 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+/**
+ * CORS rules for the Spring server stacks. The WebFlux server mode, built
+ * with {@code -Pwebflux}, applies the same rules through ReactiveWebConfig.
+ */
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
 
+    static final String[] ALLOWED_ORIGINS = {"http://localhost:3000", "https://your-frontend.vercel.app"}; // update Vercel URL
+    static final String[] ALLOWED_METHODS = {"GET", "POST", "PUT", "DELETE", "OPTIONS"};
+    static final String[] EXPOSED_HEADERS = {"Content-Disposition", "Content-Range", "Accept-Ranges", "ETag", "Repr-Digest"};
+
     @Override
     public void addCorsMappings(CorsRegistry registry) {
         registry.addMapping("/**")
-                .allowedOrigins("http://localhost:3000", "https://your-frontend.vercel.app") // update Vercel URL
-                .allowedMethods("GET", "POST", "PUT", "DELETE", "OPTIONS")
-                .allowedHeaders("*");
+                .allowedOrigins(ALLOWED_ORIGINS)
+                .allowedMethods(ALLOWED_METHODS)
+                .allowedHeaders("*")
+                .exposedHeaders(EXPOSED_HEADERS);
     }
 }
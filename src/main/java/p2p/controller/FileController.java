@@ -1,147 +1,425 @@
 package p2p.controller;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import p2p.config.ExecutionConfig;
+import p2p.config.StorageConfig;
+import p2p.config.TransferConfig;
+import p2p.metrics.Counter;
+import p2p.metrics.Gauge;
+import p2p.metrics.Histogram;
+import p2p.metrics.MetricsRegistry;
+import p2p.service.CompressionCache;
+import p2p.service.ContentManifest;
+import p2p.service.EvictionManager;
+import p2p.service.FileRegistry;
+import p2p.service.FileStore;
+import p2p.service.HotFileCache;
+import p2p.service.SharedFile;
+import p2p.service.TransferScheduler;
+import p2p.service.UploadSessionManager;
+import p2p.utils.Compression;
+import p2p.utils.ContentDisposition;
+import p2p.utils.DigestFields;
+import p2p.utils.HttpRange;
+import p2p.utils.MultipartParser;
+import p2p.utils.TransferUtils;
+import p2p.utils.UploadUtils;
 
 public class FileController {
     private final HttpServer server;
-    private final String uploadDir;
     private final ExecutorService executorService;
-    private final Map<String, String> uploadedFiles; // id -> file path
+    private final SheddingExecutor sheddingExecutor;
+    private final FileRegistry uploadedFiles; // id -> file path and metadata, persisted in uploadDir
+    private final FileStore fileStore;
+    private final UploadSessionManager uploadSessions;
+    private final CompressionCache compressionCache;
+    private final HotFileCache hotFiles;
+    private final StorageConfig storageConfig;
+    private final EvictionManager eviction;
+    private final TransferScheduler transfers;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final Histogram uploadParseNanos = metrics.histogram("peerlink_upload_parse_seconds",
+            "Time spent parsing a multipart upload and storing its files", 1e-9);
+    private final Counter uploadedBytes = metrics.counter("peerlink_uploaded_bytes_total",
+            "File bytes received through uploads and upload session chunks");
+    private final Counter downloadedBytes = metrics.counter("peerlink_downloaded_bytes_total",
+            "Body bytes sent by /download");
+    private final Counter rejectedChunks = metrics.counter("peerlink_upload_rejected_chunks_total",
+            "Upload session chunks rejected for a wrong length or checksum");
+    private final Histogram downloadBytesPerSecond = metrics.histogram("peerlink_download_bytes_per_second",
+            "Throughput of individual downloads of 64 KB or more", 1);
 
     public FileController(int port) throws IOException {
-        this.server = HttpServer.create(new java.net.InetSocketAddress(port), 0);
-        this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads";
-        this.executorService = Executors.newFixedThreadPool(10);
-        this.uploadedFiles = new ConcurrentHashMap<>();
+        this(port, defaultUploadDirectory());
+    }
+
+    public FileController(int port, Path uploadDir) throws IOException {
+        this(port, uploadDir, ExecutionConfig.fromEnvironment());
+    }
+
+    public FileController(int port, Path uploadDir, ExecutionConfig executionConfig) throws IOException {
+        this(port, uploadDir, executionConfig, StorageConfig.fromEnvironment());
+    }
+
+    public FileController(int port, Path uploadDir, ExecutionConfig executionConfig, StorageConfig storageConfig)
+            throws IOException {
+        this(port, uploadDir, executionConfig, storageConfig, TransferConfig.fromEnvironment());
+    }
+
+    public FileController(int port, Path uploadDir, ExecutionConfig executionConfig, StorageConfig storageConfig,
+                          TransferConfig transferConfig) throws IOException {
+        this.server = HttpServer.create(new java.net.InetSocketAddress(port), executionConfig.getBacklog());
+        this.executorService = executionConfig.createExecutor("peerlink-http");
+        this.sheddingExecutor = new SheddingExecutor(executorService, executionConfig.getAdmissionTimeoutMillis());
 
         // Ensure upload directory exists
-        File uploadDirFile = new File(uploadDir);
+        File uploadDirFile = uploadDir.toFile();
         if (!uploadDirFile.exists()) {
             uploadDirFile.mkdirs();
         }
 
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
+        long loadStart = System.nanoTime();
+        this.uploadedFiles = new FileRegistry(uploadDir);
+        System.out.println("Loaded " + uploadedFiles.size() + " shared files in "
+                + (System.nanoTime() - loadStart) / 1_000_000 + " ms");
+        this.fileStore = new FileStore(uploadDir);
+        fileStore.load(uploadedFiles);
+        this.uploadSessions = new UploadSessionManager(uploadDir.toString(), fileStore, storageConfig);
+        uploadSessions.removeAbandoned();
+        this.compressionCache = new CompressionCache(fileStore);
+        this.hotFiles = new HotFileCache(storageConfig.getHotCacheBytes(), storageConfig.getHotCacheMaxFileBytes());
+        this.storageConfig = storageConfig;
+        this.eviction = new EvictionManager(uploadedFiles, fileStore, storageConfig, uploadSessions);
+        this.transfers = new TransferScheduler(transferConfig);
+
+        AdmissionFilter admission = new AdmissionFilter(executionConfig.getMaxConcurrent(), executionConfig.getAdmissionTimeoutMillis());
+        addContext("/upload", "upload", new UploadHandler(), admission);
+        addContext("/upload/sessions", "upload_session", new UploadSessionHandler(), admission);
+        addContext("/download", "download", new DownloadHandler(), admission);
+        addContext("/download/batch", "download_batch", new BatchDownloadHandler(), admission);
+        server.createContext("/metrics", new MetricsHandler());
         server.createContext("/", new CORSHandler());
+        registerMetrics(admission);
 
-        server.setExecutor(executorService);
+        server.setExecutor(sheddingExecutor);
+        System.out.println("Request execution: " + executionConfig);
+    }
+
+    /** Where shares are stored unless told otherwise; the same for every server mode, so switching modes keeps them. */
+    public static Path defaultUploadDirectory() {
+        return Path.of(System.getProperty("java.io.tmpdir"), "peerlink-uploads");
+    }
+
+    /** Timing sits outside admission, so requests turned away with 503 are measured too. */
+    private void addContext(String path, String handlerName, HttpHandler handler, Filter admission) {
+        List<Filter> filters = server.createContext(path, handler).getFilters();
+        filters.add(new MetricsFilter(metrics, handlerName));
+        filters.add(admission);
+    }
+
+    private void registerMetrics(AdmissionFilter admission) {
+        if (executorService instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executorService;
+            metrics.gauge("peerlink_executor_queue_depth", "Requests waiting for a worker thread",
+                    () -> pool.getQueue().size());
+            metrics.gauge("peerlink_executor_active_threads", "Worker threads running a request", pool::getActiveCount);
+        }
+        metrics.gauge("peerlink_admission_waiting", "Requests waiting for an admission slot", admission::waiting);
+        metrics.gauge("peerlink_admission_available", "Free admission slots", admission::available);
+        metrics.counter("peerlink_shed_requests_total", "Requests answered with 503 without reaching a worker",
+                sheddingExecutor::getShed);
+        metrics.gauge("peerlink_shares", "Live share ids", uploadedFiles::size);
+        metrics.gauge("peerlink_upload_sessions", "Chunked upload sessions in progress", uploadSessions::size);
+        metrics.gauge("peerlink_stored_bytes", "Bytes on disk for shared files, counting duplicate content once",
+                fileStore::getStoredBytes);
+        metrics.gauge("peerlink_stored_objects", "Distinct stored files", fileStore::getObjectCount);
+        metrics.counter("peerlink_deduplicated_bytes_total", "Uploaded bytes not stored because the content already was",
+                fileStore::getDedupedBytes);
+        for (EvictionManager.Reason reason : EvictionManager.Reason.values()) {
+            metrics.counter("peerlink_reclaimed_shares_total", "Shares removed by the eviction manager",
+                    () -> eviction.getReclaimedEntries(reason), "reason", reason.name().toLowerCase());
+        }
+        metrics.counter("peerlink_reclaimed_bytes_total", "Bytes of shares removed by the eviction manager",
+                eviction::getReclaimedBytes);
+        metrics.counter("peerlink_compression_cache_hits_total", "Compressed downloads served from a stored variant",
+                compressionCache::getHits);
+        metrics.counter("peerlink_compression_cache_misses_total", "Compressed downloads encoded on the fly",
+                compressionCache::getMisses);
+        metrics.counter("peerlink_hot_cache_hits_total", "Downloads served from file contents held in memory",
+                hotFiles::getHits);
+        metrics.counter("peerlink_hot_cache_misses_total", "Downloads of cacheable files that were not in memory",
+                hotFiles::getMisses);
+        metrics.counter("peerlink_hot_cache_served_bytes_total", "Body bytes sent from memory", hotFiles::getServedBytes);
+        metrics.counter("peerlink_hot_cache_evictions_total", "Files dropped from memory to make room for hotter ones",
+                hotFiles::getEvictions);
+        metrics.counter("peerlink_hot_cache_rejections_total",
+                "Files kept out of memory because the files they would replace were requested more often",
+                hotFiles::getRejections);
+        metrics.gauge("peerlink_hot_cache_bytes", "Off-heap memory holding file contents", hotFiles::getUsedBytes);
+        metrics.gauge("peerlink_hot_cache_files", "Files held in memory", hotFiles::getEntryCount);
+        metrics.gauge("peerlink_shaped_transfers", "Downloads paced by the bandwidth limits", transfers::getActiveTransfers);
+        metrics.counter("peerlink_bandwidth_waits_total", "Times a download waited for its share of bandwidth",
+                transfers::getWaits);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
     }
 
     public void start() {
+        eviction.start();
         server.start();
         System.out.println("API server started on port " + server.getAddress().getPort());
     }
 
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
     public void stop() {
         server.stop(0);
         executorService.shutdown();
+        sheddingExecutor.shutdown();
+        eviction.close();
+        transfers.close();
+        try {
+            uploadedFiles.close();
+        } catch (IOException e) {
+            System.err.println("Error closing file registry: " + e.getMessage());
+        }
         System.out.println("API server stopped");
     }
 
-    private class CORSHandler implements HttpHandler {
+    /** Records latency, in-flight count and response status of each request to one handler. */
+    private static class MetricsFilter extends Filter {
+        private final Histogram latencyNanos;
+        private final Gauge inFlight;
+        private final Counter[] responses = new Counter[5]; // by status class, 1xx..5xx
+        private final Counter failures;
+
+        MetricsFilter(MetricsRegistry metrics, String handler) {
+            latencyNanos = metrics.histogram("peerlink_http_request_duration_seconds",
+                    "Time from request to the end of the response body", 1e-9, "handler", handler);
+            inFlight = metrics.gauge("peerlink_http_requests_in_flight", "Requests being handled", "handler", handler);
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = metrics.counter("peerlink_http_responses_total", "Responses sent, by status class",
+                        "handler", handler, "code", (i + 1) + "xx");
+            }
+            failures = metrics.counter("peerlink_http_failures_total",
+                    "Requests that ended in an exception, usually a dropped connection", "handler", handler);
+        }
+
         @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            Headers headers = exchange.getResponseHeaders();
-            headers.add("Access-Control-Allow-Origin", "*");
-            headers.add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-            headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            inFlight.increment();
+            try {
+                chain.doFilter(exchange);
+            } catch (IOException | RuntimeException e) {
+                failures.increment();
+                throw e;
+            } finally {
+                inFlight.decrement();
+                latencyNanos.recordSince(start);
+                int status = exchange.getResponseCode();
+                if (status >= 100 && status < 600) responses[status / 100 - 1].increment();
+            }
+        }
 
-            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
-                exchange.sendResponseHeaders(204, -1);
+        @Override
+        public String description() {
+            return "Records request latency and outcome";
+        }
+    }
+
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Method Not Allowed");
                 return;
             }
-
-            String response = "Not Found";
-            exchange.sendResponseHeaders(404, response.getBytes().length);
+            StringBuilder text = new StringBuilder(8192);
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
             try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
+                os.write(body);
             }
         }
     }
 
-    private static class MultipartParser {
-        private final byte[] data;
-        private final String boundary;
+    /**
+     * Caps the number of requests handled at once. A request that cannot get a
+     * slot within the timeout is answered with 503 instead of piling up.
+     */
+    private static class AdmissionFilter extends Filter {
+        private final Semaphore permits;
+        private final long timeoutMillis;
 
-        public MultipartParser(byte[] data, String boundary) {
-            this.data = data;
-            this.boundary = boundary;
+        AdmissionFilter(int maxConcurrent, long timeoutMillis) {
+            this.permits = new Semaphore(maxConcurrent);
+            this.timeoutMillis = timeoutMillis;
         }
 
-        public ParseResult parse() {
-            try {
-                String dataAsString = new String(data);
-
-                String filenameMarker = "filename=\"";
-                int filenameStart = dataAsString.indexOf(filenameMarker);
-                if (filenameStart == -1) return null;
-                filenameStart += filenameMarker.length();
-                int filenameEnd = dataAsString.indexOf("\"", filenameStart);
-                String filename = dataAsString.substring(filenameStart, filenameEnd);
-
-                String contentTypeMarker = "Content-Type: ";
-                int contentTypeStart = dataAsString.indexOf(contentTypeMarker, filenameEnd);
-                String contentType = "application/octet-stream";
-                if (contentTypeStart != -1) {
-                    contentTypeStart += contentTypeMarker.length();
-                    int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
-                    contentType = dataAsString.substring(contentTypeStart, contentTypeEnd);
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            boolean admitted = false;
+            if (!SheddingExecutor.isShedding()) {
+                try {
+                    admitted = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+            }
+            if (!admitted) {
+                exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                sendText(exchange, 503, "Server busy, try again later");
+                return;
+            }
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                permits.release();
+            }
+        }
 
-                int headerEnd = dataAsString.indexOf("\r\n\r\n");
-                if (headerEnd == -1) return null;
-                int contentStart = headerEnd + 4;
+        @Override
+        public String description() {
+            return "Limits concurrently handled requests";
+        }
 
-                byte[] boundaryBytes = ("\r\n--" + boundary + "--").getBytes();
-                int contentEnd = findSequence(data, boundaryBytes, contentStart);
-                if (contentEnd == -1) {
-                    boundaryBytes = ("\r\n--" + boundary).getBytes();
-                    contentEnd = findSequence(data, boundaryBytes, contentStart);
-                }
-                if (contentEnd == -1 || contentEnd <= contentStart) return null;
+        long waiting() {
+            return permits.getQueueLength();
+        }
 
-                byte[] fileContent = new byte[contentEnd - contentStart];
-                System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
+        long available() {
+            return permits.availablePermits();
+        }
+    }
 
-                return new ParseResult(filename, contentType, fileContent);
-            } catch (Exception e) {
-                System.err.println("Error parsing multipart data: " + e.getMessage());
-                return null;
+    /**
+     * Hands exchanges to the worker executor. An exchange the pool turns away
+     * because its queue is full, or that sat in the queue longer than the
+     * admission timeout, is run in shedding mode instead: the
+     * {@link AdmissionFilter} answers it with 503 straight away. Turned-away
+     * exchanges run on a few threads of their own, since reading the request
+     * line still blocks; if those are saturated too, HttpServer closes the
+     * connection.
+     */
+    private static class SheddingExecutor implements Executor {
+        private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>();
+        private static final int SHEDDING_THREADS = 2;
+        private static final int SHEDDING_QUEUE = 1024;
+
+        private final ExecutorService workers;
+        private final long timeoutNanos;
+        private final ThreadPoolExecutor shedding;
+        private final AtomicLong shed = new AtomicLong();
+
+        SheddingExecutor(ExecutorService workers, long timeoutMillis) {
+            this.workers = workers;
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            this.shedding = new ThreadPoolExecutor(SHEDDING_THREADS, SHEDDING_THREADS, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(SHEDDING_QUEUE), runnable -> {
+                        Thread thread = new Thread(runnable, "peerlink-http-shedding");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+
+        static boolean isShedding() {
+            return SHEDDING.get() != null;
+        }
+
+        @Override
+        public void execute(Runnable exchange) {
+            long queuedAt = System.nanoTime();
+            try {
+                workers.execute(() -> {
+                    if (System.nanoTime() - queuedAt > timeoutNanos) {
+                        shed(exchange);
+                    } else {
+                        exchange.run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                shedding.execute(() -> shed(exchange));
             }
         }
 
-        private int findSequence(byte[] data, byte[] sequence, int startPos) {
-            outer:
-            for (int i = startPos; i <= data.length - sequence.length; i++) {
-                for (int j = 0; j < sequence.length; j++) {
-                    if (data[i + j] != sequence[j]) continue outer;
-                }
-                return i;
+        private void shed(Runnable exchange) {
+            shed.incrementAndGet();
+            SHEDDING.set(Boolean.TRUE);
+            try {
+                exchange.run();
+            } finally {
+                SHEDDING.remove();
             }
-            return -1;
         }
 
-        public static class ParseResult {
-            public final String filename;
-            public final String contentType;
-            public final byte[] fileContent;
+        long getShed() {
+            return shed.get();
+        }
+
+        void shutdown() {
+            shedding.shutdown();
+        }
+    }
+
+    private class CORSHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+            headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+            headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization,Range,If-Range,Content-Digest");
 
-            public ParseResult(String filename, String contentType, byte[] fileContent) {
-                this.filename = filename;
-                this.contentType = contentType;
-                this.fileContent = fileContent;
+            if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+
+            String response = "Not Found";
+            exchange.sendResponseHeaders(404, response.getBytes().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
             }
         }
     }
@@ -171,36 +449,96 @@ public class FileController {
                 return;
             }
 
+            String boundary = MultipartParser.extractBoundary(contentType);
+            if (boundary == null) {
+                String response = "Bad Request: Missing multipart boundary";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+
+            long expiresAt;
+            int maxDownloads;
             try {
-                String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                IOUtils.copy(exchange.getRequestBody(), baos);
-                byte[] requestData = baos.toByteArray();
-
-                MultipartParser parser = new MultipartParser(requestData, boundary);
-                MultipartParser.ParseResult result = parser.parse();
-                if (result == null) {
-                    String response = "Bad Request: Could not parse file content";
-                    exchange.sendResponseHeaders(400, response.getBytes().length);
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
-                    }
-                    return;
+                Map<String, String> params = UploadUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+                expiresAt = expiresAt(params);
+                maxDownloads = maxDownloads(params);
+            } catch (NumberFormatException e) {
+                sendText(exchange, 400, "Bad Request: ttl and maxDownloads must be numbers");
+                return;
+            }
+
+            // The request length bounds the files in it, so room is made before any of them is written.
+            // Without a length (chunked requests) the quota is only enforced once the files are tracked.
+            long reserved = requestLength(exchange);
+            try {
+                try {
+                    uploadSessions.reserve(reserved);
+                } catch (UploadSessionManager.InsufficientStorageException e) {
+                    eviction.makeRoom(reserved);
+                    uploadSessions.reserve(reserved);
                 }
+            } catch (UploadSessionManager.InsufficientStorageException e) {
+                sendText(exchange, 507, "Insufficient Storage: " + e.getMessage());
+                return;
+            }
+
+            List<SharedFile> writtenFiles = new ArrayList<>();
+            long parseStart = System.nanoTime();
+            try {
+                try {
+                    // Each file part is streamed straight to disk as it is parsed
+                    MultipartParser parser = new MultipartParser(exchange.getRequestBody(), boundary);
+                    parser.parse((part, content) -> {
+                        if (!part.isFile()) return;
+
+                        String filename = part.getFilename().isEmpty() ? "unnamed-file" : new File(part.getFilename()).getName();
+
+                        // Hashed on the way to disk; identical content ends up stored once
+                        FileStore.StoredObject stored = fileStore.write(content);
+                        writtenFiles.add(new SharedFile(UUID.randomUUID().toString(), stored.getPath(), filename,
+                                stored.getSize(), part.getContentType(), stored.getDigest(), System.currentTimeMillis(),
+                                expiresAt, maxDownloads));
+                        uploadedBytes.add(stored.getSize());
+                    });
+                } finally {
+                    // The stored files count from here on
+                    uploadSessions.release(reserved);
+                }
+            } catch (IOException e) {
+                deleteFiles(writtenFiles);
+                System.err.println("Error parsing multipart data: " + e.getMessage());
+                String response = "Bad Request: Could not parse file content";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
 
-                String filename = result.filename == null ? "unnamed-file" : result.filename;
-                String uniqueFilename = UUID.randomUUID().toString() + "_" + new File(filename).getName();
-                String filePath = uploadDir + File.separator + uniqueFilename;
+            long parseNanos = System.nanoTime() - parseStart;
+            uploadParseNanos.record(parseNanos);
+            headers.add("Server-Timing", "parse;dur=" + parseNanos / 1_000_000.0);
 
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    fos.write(result.fileContent);
+            if (writtenFiles.isEmpty()) {
+                String response = "Bad Request: Could not parse file content";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
                 }
+                return;
+            }
 
+            try {
                 // Store file ID → path
-                String fileId = UUID.randomUUID().toString();
-                uploadedFiles.put(fileId, filePath);
+                for (SharedFile file : writtenFiles) {
+                    uploadedFiles.put(file);
+                    eviction.track(file);
+                }
 
-                String jsonResponse = "{\"id\": \"" + fileId + "\"}";
+                String jsonResponse = uploadJson(writtenFiles, fileStore);
                 headers.add("Content-Type", "application/json");
                 exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
@@ -216,15 +554,248 @@ public class FileController {
                 }
             }
         }
+
+        private long requestLength(HttpExchange exchange) {
+            try {
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                return length == null ? 0 : Math.max(0, Long.parseLong(length));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        private void deleteFiles(List<SharedFile> files) {
+            for (SharedFile file : files) {
+                try {
+                    fileStore.release(file);
+                } catch (IOException e) {
+                    System.err.println("Error deleting " + file.getPath() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Resumable chunked uploads:
+     * <pre>
+     * POST   /upload/sessions?filename=..&amp;size=..[&amp;chunkSize=..&amp;contentType=..&amp;ttl=..&amp;maxDownloads=..]
+     *                                                                start a session
+     * PUT    /upload/sessions/{sessionId}/chunks/{index}            upload one chunk, optionally with a
+     *                                                                Content-Digest (crc32c and/or sha-256)
+     * GET    /upload/sessions/{sessionId}                           list missing chunks
+     * POST   /upload/sessions/{sessionId}/complete                  finish, returns the file id and checksums
+     * DELETE /upload/sessions/{sessionId}                           abandon the session
+     * </pre>
+     */
+    private class UploadSessionHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+
+            String method = exchange.getRequestMethod().toUpperCase();
+            if ("OPTIONS".equals(method)) {
+                headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+                headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization,Content-Digest");
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+
+            // Path segments after /upload/sessions
+            String path = exchange.getRequestURI().getPath().substring("/upload/sessions".length());
+            String[] segments = path.isEmpty() || "/".equals(path) ? new String[0] : path.substring(1).split("/");
+
+            try {
+                if (segments.length == 0 && "POST".equals(method)) {
+                    createSession(exchange);
+                    return;
+                }
+                UploadSessionManager.UploadSession session = segments.length == 0 ? null : uploadSessions.get(segments[0]);
+                if (session == null) {
+                    sendText(exchange, 404, "Upload session not found");
+                } else if (segments.length == 1 && "GET".equals(method)) {
+                    sendJson(exchange, 200, sessionStatus(session));
+                } else if (segments.length == 1 && "DELETE".equals(method)) {
+                    uploadSessions.abort(session.getId());
+                    exchange.sendResponseHeaders(204, -1);
+                } else if (segments.length == 3 && "chunks".equals(segments[1]) && "PUT".equals(method)) {
+                    int index = Integer.parseInt(segments[2]);
+                    String contentDigest = exchange.getRequestHeaders().getFirst("Content-Digest");
+                    try {
+                        session.writeChunk(index, exchange.getRequestBody(),
+                                DigestFields.parse(contentDigest, DigestFields.CRC32C),
+                                DigestFields.parse(contentDigest, DigestFields.SHA_256));
+                    } catch (IllegalArgumentException e) {
+                        rejectedChunks.increment();
+                        throw e;
+                    }
+                    uploadedBytes.add(session.chunkLength(index));
+                    exchange.sendResponseHeaders(204, -1);
+                } else if (segments.length == 2 && "complete".equals(segments[1]) && "POST".equals(method)) {
+                    FileStore.StoredObject stored = uploadSessions.complete(session.getId());
+                    if (stored == null) {
+                        sendText(exchange, 404, "Upload session not found");
+                        return;
+                    }
+                    String fileId = UUID.randomUUID().toString();
+                    SharedFile sharedFile = new SharedFile(fileId, stored.getPath(), session.getFilename(), stored.getSize(),
+                            session.getContentType(), stored.getDigest(), System.currentTimeMillis(),
+                            session.getExpiresAt(), session.getMaxDownloads());
+                    uploadedFiles.put(sharedFile);
+                    eviction.track(sharedFile);
+                    sendJson(exchange, 200, "{\"id\": \"" + fileId + "\"" + checksumJson(sharedFile, fileStore) + "}");
+                } else {
+                    sendText(exchange, 405, "Method Not Allowed");
+                }
+            } catch (NumberFormatException e) {
+                sendText(exchange, 400, "Bad Request: invalid number");
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, "Bad Request: " + e.getMessage());
+            } catch (IllegalStateException e) {
+                sendText(exchange, 409, "Conflict: " + e.getMessage());
+            } catch (UploadSessionManager.InsufficientStorageException e) {
+                sendText(exchange, 507, "Insufficient Storage: " + e.getMessage());
+            } catch (Exception e) {
+                System.err.println("Error processing upload session request: " + e.getMessage());
+                sendText(exchange, 500, "Server error: " + e.getMessage());
+            }
+        }
+
+        private void createSession(HttpExchange exchange) throws IOException {
+            Map<String, String> params = UploadUtils.parseQuery(exchange.getRequestURI().getRawQuery());
+            if (!params.containsKey("size")) {
+                sendText(exchange, 400, "Bad Request: size is required");
+                return;
+            }
+            long size = Long.parseLong(params.get("size"));
+            int chunkSize = params.containsKey("chunkSize")
+                    ? Integer.parseInt(params.get("chunkSize"))
+                    : UploadSessionManager.DEFAULT_CHUNK_SIZE;
+
+            String filename = params.get("filename");
+            String contentType = params.get("contentType");
+            long expiresAt = expiresAt(params);
+            int maxDownloads = maxDownloads(params);
+            UploadSessionManager.UploadSession session;
+            try {
+                session = uploadSessions.create(filename, contentType, size, chunkSize, expiresAt, maxDownloads);
+            } catch (UploadSessionManager.InsufficientStorageException e) {
+                // Older shares may make way, as they do for a plain upload
+                eviction.makeRoom(size);
+                session = uploadSessions.create(filename, contentType, size, chunkSize, expiresAt, maxDownloads);
+            }
+            sendJson(exchange, 201, "{\"sessionId\": \"" + session.getId() + "\", \"chunkSize\": " + session.getChunkSize()
+                    + ", \"chunkCount\": " + session.getChunkCount() + "}");
+        }
+
+        private String sessionStatus(UploadSessionManager.UploadSession session) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"sessionId\": \"").append(session.getId()).append("\"")
+                    .append(", \"size\": ").append(session.getSize())
+                    .append(", \"chunkSize\": ").append(session.getChunkSize())
+                    .append(", \"chunkCount\": ").append(session.getChunkCount())
+                    .append(", \"received\": ").append(session.receivedCount())
+                    .append(", \"missing\": [");
+            List<Integer> missing = session.missingChunks();
+            for (int i = 0; i < missing.size(); i++) {
+                if (i > 0) json.append(", ");
+                json.append(missing.get(i));
+            }
+            return json.append("]}").toString();
+        }
+    }
+
+    /** Absolute expiry for a share from its optional {@code ttl} query parameter (seconds). */
+    private long expiresAt(Map<String, String> params) {
+        String ttl = params.get("ttl");
+        return storageConfig.expiresAt(ttl == null || ttl.isEmpty() ? null : Long.parseLong(ttl), System.currentTimeMillis());
+    }
+
+    /**
+     * The answer to an upload: "id" and the checksums next to it describe the
+     * first file, as they did before uploads could carry several, and "files"
+     * lists every one.
+     */
+    static String uploadJson(List<SharedFile> files, FileStore fileStore) {
+        StringBuilder json = new StringBuilder();
+        SharedFile first = files.get(0);
+        json.append("{\"id\": \"").append(first.getId()).append("\"").append(checksumJson(first, fileStore))
+                .append(", \"files\": [");
+        for (int i = 0; i < files.size(); i++) {
+            SharedFile file = files.get(i);
+            if (i > 0) json.append(", ");
+            json.append("{\"id\": \"").append(file.getId()).append("\"")
+                    .append(", \"filename\": \"").append(jsonEscape(file.getFilename())).append("\"")
+                    .append(", \"size\": ").append(file.getSize())
+                    .append(checksumJson(file, fileStore)).append("}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /** The share's checksums as JSON members to append to an object, for the uploader to compare. */
+    private static String checksumJson(SharedFile file, FileStore fileStore) {
+        StringBuilder json = new StringBuilder();
+        if (!file.getChecksum().isEmpty()) json.append(", \"sha256\": \"").append(file.getChecksum()).append("\"");
+        long crc = fileStore.contentCrc32c(file);
+        if (crc >= 0) json.append(", \"crc32c\": \"").append(String.format("%08x", crc)).append("\"");
+        return json.toString();
+    }
+
+    /** Repr-Digest from the stored checksums, without reading the file; null if there are none. */
+    static String reprDigest(SharedFile sharedFile, FileStore fileStore) {
+        List<String> members = new ArrayList<>(2);
+        if (!sharedFile.getChecksum().isEmpty()) {
+            members.add(DigestFields.member(DigestFields.SHA_256, HexFormat.of().parseHex(sharedFile.getChecksum())));
+        }
+        long crc = fileStore.contentCrc32c(sharedFile);
+        if (crc >= 0) members.add(DigestFields.member(DigestFields.CRC32C, DigestFields.crc32c(crc)));
+        return members.isEmpty() ? null : String.join(", ", members);
+    }
+
+    private static String jsonEscape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static int maxDownloads(Map<String, String> params) {
+        String maxDownloads = params.get("maxDownloads");
+        return maxDownloads == null || maxDownloads.isEmpty() ? 0 : Integer.parseInt(maxDownloads);
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String response) throws IOException {
+        byte[] bytes = response.getBytes();
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        sendText(exchange, status, json);
     }
 
     private class DownloadHandler implements HttpHandler {
+        private static final String MANIFEST_PATH = "/manifest";
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             Headers headers = exchange.getResponseHeaders();
             headers.add("Access-Control-Allow-Origin", "*");
 
-            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            String method = exchange.getRequestMethod();
+            boolean head = "HEAD".equalsIgnoreCase(method);
+            if (!head && !"GET".equalsIgnoreCase(method)) {
                 String response = "Method Not Allowed";
                 exchange.sendResponseHeaders(405, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
@@ -233,11 +804,18 @@ public class FileController {
                 return;
             }
 
+            // /download/{id}, or /download/{id}/manifest for its checksums
             String path = exchange.getRequestURI().getPath();
+            boolean manifest = path.endsWith(MANIFEST_PATH);
+            if (manifest) path = path.substring(0, path.length() - MANIFEST_PATH.length());
             String fileId = path.substring(path.lastIndexOf('/') + 1);
 
-            String filePath = uploadedFiles.get(fileId);
-            if (filePath == null) {
+            SharedFile sharedFile = uploadedFiles.get(fileId);
+            if (sharedFile != null && sharedFile.isExpired(System.currentTimeMillis())) {
+                sharedFile = null; // the sweeper will reclaim it on its next tick
+            }
+            File file = sharedFile == null ? null : new File(sharedFile.getPath());
+            if (file == null || !file.isFile()) {
                 String response = "File not found";
                 exchange.sendResponseHeaders(404, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
@@ -246,19 +824,329 @@ public class FileController {
                 return;
             }
 
-            File file = new File(filePath);
-            headers.add("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
-            headers.add("Content-Type", "application/octet-stream");
+            if (manifest) {
+                sendManifest(exchange, head, sharedFile);
+                return;
+            }
 
-            exchange.sendResponseHeaders(200, file.length());
-            try (OutputStream os = exchange.getResponseBody();
-                 FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    os.write(buffer, 0, bytesRead);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long lastModified = file.lastModified();
+                // Content-addressed files are tagged by their digest, so every share of the same bytes validates alike
+                String etag = sharedFile.getChecksum().isEmpty() ? HttpRange.etag(file) : "\"" + sharedFile.getChecksum() + "\"";
+                Headers requestHeaders = exchange.getRequestHeaders();
+
+                // Range requests address bytes of the file itself, so they are always served unencoded
+                Compression.Codec codec = null;
+                if (compressionCache.isCompressible(sharedFile)) {
+                    headers.add("Vary", "Accept-Encoding");
+                    if (!requestHeaders.containsKey("Range")) {
+                        codec = compressionCache.negotiate(sharedFile, requestHeaders.getFirst("Accept-Encoding"));
+                    }
+                }
+                String responseEtag = codec == null ? etag : etag.substring(0, etag.length() - 1) + "-" + codec.token() + "\"";
+
+                headers.add("Access-Control-Expose-Headers", "Content-Disposition,Content-Range,Accept-Ranges,ETag,Repr-Digest");
+                headers.add("Accept-Ranges", "bytes");
+                headers.add("ETag", responseEtag);
+                // Digests of the whole unencoded file, so a client can check what it assembled from any ranges
+                String reprDigest = codec == null ? reprDigest(sharedFile, fileStore) : null;
+                if (reprDigest != null) headers.add("Repr-Digest", reprDigest);
+                headers.add("Last-Modified", HttpRange.httpDate(lastModified));
+
+                if (HttpRange.matchesAny(requestHeaders.getFirst("If-None-Match"), responseEtag)) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
                 }
+
+                headers.add("Content-Disposition", ContentDisposition.attachment(sharedFile.getFilename()));
+
+                List<HttpRange> ranges = null;
+                if (HttpRange.ifRangeMatches(requestHeaders.getFirst("If-Range"), etag, lastModified)) {
+                    ranges = HttpRange.parse(requestHeaders.getFirst("Range"), size);
+                }
+
+                // Every response with a body counts, ranged or not, so ranges cannot fetch a limited share for free
+                boolean sendsBody = !head && (ranges == null || !ranges.isEmpty());
+                if (sendsBody && !eviction.admitDownload(sharedFile)) {
+                    headers.remove("Content-Disposition");
+                    sendText(exchange, 404, "File not found");
+                    return;
+                }
+
+                // Whole plain bodies of popular files come from memory instead of another read of the file;
+                // ranges and 416s neither count as a request for the file nor load it
+                ByteBuffer cached = codec == null && !head && ranges == null && fileStore.isStored(sharedFile)
+                        ? hotFiles.get(sharedFile, channel) : null;
+                FileSource source = new FileSource(channel, cached);
+
+                if (codec != null) {
+                    headers.add("Content-Type", sharedFile.getContentType());
+                    headers.add("Content-Encoding", codec.token());
+                    sendCompressed(exchange, head, sharedFile, codec, channel);
+                } else if (ranges == null) {
+                    headers.add("Content-Type", sharedFile.getContentType());
+                    sendBody(exchange, head, 200, size, os -> source.copy(0, size, os));
+                } else if (ranges.isEmpty()) {
+                    headers.add("Content-Range", "bytes */" + size);
+                    exchange.sendResponseHeaders(416, -1);
+                } else if (ranges.size() == 1) {
+                    HttpRange range = ranges.get(0);
+                    headers.add("Content-Type", sharedFile.getContentType());
+                    headers.add("Content-Range", range.contentRange(size));
+                    sendBody(exchange, head, 206, range.length(), os -> source.copy(range.getStart(), range.length(), os));
+                } else {
+                    sendMultipleRanges(exchange, head, source, ranges, size, sharedFile.getContentType());
+                }
+            }
+        }
+
+        /**
+         * Sends the share's size and the CRC32C and SHA-256 of the whole file
+         * and of each piece, so a client can verify a download piece by piece
+         * or re-fetch only the ranges that came out wrong.
+         */
+        private void sendManifest(HttpExchange exchange, boolean head, SharedFile sharedFile) throws IOException {
+            ContentManifest manifest = fileStore.manifest(sharedFile);
+            HexFormat hex = HexFormat.of();
+            StringBuilder json = new StringBuilder(128 + manifest.getPieceCount() * 112);
+            json.append("{\"id\": \"").append(sharedFile.getId()).append("\"")
+                    .append(", \"size\": ").append(manifest.getSize())
+                    .append(", \"sha256\": \"").append(manifest.getSha256Hex()).append("\"")
+                    .append(", \"crc32c\": \"").append(String.format("%08x", manifest.getCrc32c())).append("\"")
+                    .append(", \"pieceSize\": ").append(manifest.getPieceSize())
+                    .append(", \"pieces\": [");
+            for (int i = 0; i < manifest.getPieceCount(); i++) {
+                if (i > 0) json.append(", ");
+                json.append("{\"crc32c\": \"").append(String.format("%08x", manifest.getPieceCrc32c(i)))
+                        .append("\", \"sha256\": \"").append(hex.formatHex(manifest.getPieceSha256(i))).append("\"}");
+            }
+            byte[] body = json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            sendBody(exchange, head, 200, body.length, os -> os.write(body));
+        }
+
+        /**
+         * Sends the cached variant when there is one; otherwise compresses on
+         * the fly with chunked encoding, filling the cache as a side effect.
+         */
+        private void sendCompressed(HttpExchange exchange, boolean head, SharedFile sharedFile,
+                                    Compression.Codec codec, FileChannel source) throws IOException {
+            File variant = compressionCache.cached(sharedFile, codec);
+            if (variant != null) {
+                try (FileChannel channel = FileChannel.open(variant.toPath(), StandardOpenOption.READ)) {
+                    compressionCache.recordHit();
+                    long length = channel.size();
+                    sendBody(exchange, head, 200, length, os -> TransferUtils.copy(channel, 0, length, os));
+                }
+            } else if (head) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                long start = System.nanoTime();
+                exchange.sendResponseHeaders(200, 0);
+                try (CountingOutputStream os = new CountingOutputStream(responseBody(exchange, sharedFile.getSize()))) {
+                    compressionCache.compress(sharedFile, codec, source, os);
+                    recordDownload(os.getByteCount(), start);
+                }
+            }
+        }
+
+        /** Sends the ranges as a multipart/byteranges body with an exact Content-Length. */
+        private void sendMultipleRanges(HttpExchange exchange, boolean head, FileSource source,
+                                        List<HttpRange> ranges, long size, String contentType) throws IOException {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+            long contentLength = 0;
+            for (HttpRange range : ranges) {
+                byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: " + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                partHeaders.add(partHeader);
+                contentLength += partHeader.length + range.length();
+            }
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            contentLength += closing.length;
+
+            exchange.getResponseHeaders().add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            sendBody(exchange, head, 206, contentLength, os -> {
+                for (int i = 0; i < ranges.size(); i++) {
+                    HttpRange range = ranges.get(i);
+                    os.write(partHeaders.get(i));
+                    source.copy(range.getStart(), range.length(), os);
+                }
+                os.write(closing);
+            });
+        }
+
+        /** The open file, plus its contents when they are held in the hot-file cache. */
+        private class FileSource {
+            private final FileChannel channel;
+            private final ByteBuffer cached;
+
+            FileSource(FileChannel channel, ByteBuffer cached) {
+                this.channel = channel;
+                this.cached = cached;
+            }
+
+            void copy(long position, long count, OutputStream os) throws IOException {
+                if (cached == null) {
+                    TransferUtils.copy(channel, position, count, os);
+                } else {
+                    hotFiles.recordServed(TransferUtils.copy(cached, position, count, os));
+                }
+            }
+        }
+
+        private void sendBody(HttpExchange exchange, boolean head, int status, long length, BodyWriter writer)
+                throws IOException {
+            if (head) {
+                // HttpServer never sends a body for HEAD, so the length has to be set by hand
+                exchange.getResponseHeaders().add("Content-Length", Long.toString(length));
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            long start = System.nanoTime();
+            exchange.sendResponseHeaders(status, length);
+            try (OutputStream os = responseBody(exchange, length)) {
+                writer.write(os);
+            }
+            recordDownload(length, start);
+        }
+    }
+
+    /** The response body, paced by the transfer scheduler when bandwidth limits are set. */
+    private OutputStream responseBody(HttpExchange exchange, long size) {
+        OutputStream body = exchange.getResponseBody();
+        if (!transfers.isShaping()) return body;
+        String client = exchange.getRemoteAddress().getAddress().getHostAddress();
+        return transfers.open(client, size).shape(body);
+    }
+
+    private void recordDownload(long bytes, long startNanos) {
+        downloadedBytes.add(bytes);
+        if (bytes >= 64 * 1024) {
+            long nanos = Math.max(1, System.nanoTime() - startNanos);
+            downloadBytesPerSecond.record(bytes * 1_000_000_000L / nanos);
+        }
+    }
+
+    /**
+     * GET /download/batch?ids=id1,id2,... streams the shares as one ZIP
+     * archive, so fetching dozens of files costs one request.
+     *
+     * The archive is written as it is sent, one entry at a time through a
+     * fixed-size buffer, so memory use does not depend on the number or size
+     * of the files. Text-like files are deflated. Everything else (images,
+     * video, archives) is already compressed and goes in as a stored entry;
+     * the CRC32 a stored entry needs up front comes from the file's manifest,
+     * so each file is still read only once. A file without a manifest is
+     * deflated at level 0 instead, which is just as cheap and needs no CRC
+     * in advance. Each file counts as one download, but only if every file
+     * in the batch can be served; shares whose budget the batch uses up are
+     * removed once the archive has been sent.
+     */
+    private class BatchDownloadHandler implements HttpHandler {
+        private static final int MAX_FILES = 1000;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Method Not Allowed");
+                return;
+            }
+
+            String ids = UploadUtils.parseQuery(exchange.getRequestURI().getRawQuery()).get("ids");
+            Set<String> fileIds = new LinkedHashSet<>();
+            if (ids != null) {
+                for (String id : ids.split(",")) {
+                    if (!id.isBlank()) fileIds.add(id.trim());
+                }
+            }
+            if (fileIds.isEmpty() || fileIds.size() > MAX_FILES) {
+                sendText(exchange, 400, "Bad Request: ids must list between 1 and " + MAX_FILES + " file ids");
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            List<SharedFile> files = new ArrayList<>(fileIds.size());
+            long totalSize = 0;
+            for (String id : fileIds) {
+                SharedFile sharedFile = uploadedFiles.get(id);
+                if (sharedFile == null || sharedFile.isExpired(now) || !new File(sharedFile.getPath()).isFile()) {
+                    sendText(exchange, 404, "File not found: " + id);
+                    return;
+                }
+                files.add(sharedFile);
+                totalSize += sharedFile.getSize();
+            }
+            List<SharedFile> spent = eviction.admitDownloads(files);
+            if (spent == null) {
+                sendText(exchange, 404, "File not found");
+                return;
+            }
+
+            headers.add("Content-Type", "application/zip");
+            headers.add("Content-Disposition", ContentDisposition.attachment("peerlink-" + files.size() + "-files.zip"));
+            headers.add("Access-Control-Expose-Headers", "Content-Disposition");
+            long start = System.nanoTime();
+            try {
+                exchange.sendResponseHeaders(200, 0);
+                try (CountingOutputStream counted = new CountingOutputStream(responseBody(exchange, totalSize));
+                     ZipOutputStream zip = new ZipOutputStream(counted)) {
+                    Set<String> names = new HashSet<>();
+                    for (SharedFile sharedFile : files) {
+                        addEntry(zip, sharedFile, uniqueName(sharedFile.getFilename(), names));
+                    }
+                    zip.finish();
+                    recordDownload(counted.getByteCount(), start);
+                }
+            } finally {
+                eviction.reclaimSpent(spent);
             }
         }
+
+        private void addEntry(ZipOutputStream zip, SharedFile sharedFile, String name) throws IOException {
+            try (FileChannel channel = FileChannel.open(Path.of(sharedFile.getPath()), StandardOpenOption.READ)) {
+                long size = channel.size();
+                ZipEntry entry = new ZipEntry(name);
+                entry.setTime(sharedFile.getCreatedAt());
+                ContentManifest manifest = null;
+                boolean compressible = Compression.isCompressible(sharedFile.getContentType(), sharedFile.getFilename());
+                if (!compressible) manifest = fileStore.storedManifest(sharedFile);
+                if (manifest != null && manifest.getSize() == size) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(size);
+                    entry.setCompressedSize(size);
+                    entry.setCrc(manifest.getCrc32() & 0xFFFFFFFFL);
+                } else {
+                    entry.setMethod(ZipEntry.DEFLATED);
+                    zip.setLevel(compressible ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+                }
+                zip.putNextEntry(entry);
+                TransferUtils.copy(channel, 0, size, zip);
+                zip.closeEntry();
+            }
+        }
+
+        /** Keeps entry names unique, turning a second "notes.txt" into "notes (2).txt". */
+        private String uniqueName(String filename, Set<String> taken) {
+            String name = filename.isEmpty() ? "unnamed-file" : filename;
+            if (taken.add(name)) return name;
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            String extension = dot > 0 ? name.substring(dot) : "";
+            for (int i = 2; ; i++) {
+                String candidate = base + " (" + i + ")" + extension;
+                if (taken.add(candidate)) return candidate;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface BodyWriter {
+        void write(OutputStream os) throws IOException;
     }
 }
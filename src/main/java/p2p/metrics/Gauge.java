@@ -0,0 +1,24 @@
+package p2p.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Value that goes up and down, such as the number of transfers in flight. */
+public final class Gauge {
+
+    private final LongAdder value = new LongAdder();
+
+    Gauge() {
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void decrement() {
+        value.decrement();
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,154 @@
+package p2p.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Named metrics and their Prometheus text rendering.
+ *
+ * Metrics are created once at startup and held by the code that updates
+ * them, so recording never goes through this class. Values owned by other
+ * components (registry size, executor queue depth, ...) are registered as
+ * suppliers and read only when {@code /metrics} is scraped.
+ *
+ * Labels are given as alternating names and values:
+ * {@code counter("peerlink_http_responses_total", "...", "handler", "upload")}.
+ */
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public Counter counter(String name, String help, String... labels) {
+        Counter counter = new Counter();
+        add(name, help, "counter", labels, counter::get, null);
+        return counter;
+    }
+
+    /** Registers a counter whose value is kept elsewhere. */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        add(name, help, "counter", labels, value, null);
+    }
+
+    public Gauge gauge(String name, String help, String... labels) {
+        Gauge gauge = new Gauge();
+        add(name, help, "gauge", labels, gauge::get, null);
+        return gauge;
+    }
+
+    /** Registers a gauge whose value is kept elsewhere. */
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        add(name, help, "gauge", labels, value, null);
+    }
+
+    /**
+     * Creates a histogram, exported as a summary with p50/p90/p99/p99.9.
+     * Recorded values are multiplied by {@code scale} on export, e.g. 1e-9
+     * to record nanoseconds and report seconds as Prometheus expects.
+     */
+    public Histogram histogram(String name, String help, double scale, String... labels) {
+        Histogram histogram = new Histogram();
+        add(name, help, "summary", labels, null, new ScaledHistogram(histogram, scale));
+        return histogram;
+    }
+
+    private synchronized void add(String name, String help, String type, String[] labels,
+                                  LongSupplier value, ScaledHistogram histogram) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name/value pairs");
+        Family family = families.computeIfAbsent(name, n -> new Family(name, help, type));
+        if (!family.type.equals(type)) throw new IllegalArgumentException(name + " is already a " + family.type);
+        String labelText = formatLabels(labels);
+        for (Sample sample : family.samples) {
+            if (sample.labels.equals(labelText)) throw new IllegalArgumentException("Duplicate metric " + name + labelText);
+        }
+        family.samples.add(new Sample(labelText, value, histogram));
+    }
+
+    /** Renders every metric in the Prometheus text exposition format (version 0.0.4). */
+    public synchronized void writePrometheus(StringBuilder out) {
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Sample sample : family.samples) {
+                if (sample.histogram == null) {
+                    line(out, family.name, sample.labels, Long.toString(sample.value.getAsLong()));
+                    continue;
+                }
+                Histogram.Snapshot snapshot = sample.histogram.histogram.snapshot();
+                double scale = sample.histogram.scale;
+                for (double quantile : QUANTILES) {
+                    String labels = withLabel(sample.labels, "quantile", Double.toString(quantile));
+                    line(out, family.name, labels, format(snapshot.quantile(quantile) * scale));
+                }
+                line(out, family.name + "_sum", sample.labels, format(snapshot.getSum() * scale));
+                line(out, family.name + "_count", sample.labels, Long.toString(snapshot.getCount()));
+            }
+        }
+    }
+
+    private static void line(StringBuilder out, String name, String labels, String value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length == 0) return "";
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) text.append(',');
+            text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return text.append('}').toString();
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Sample> samples = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Sample {
+        final String labels;
+        final LongSupplier value;
+        final ScaledHistogram histogram;
+
+        Sample(String labels, LongSupplier value, ScaledHistogram histogram) {
+            this.labels = labels;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    private static final class ScaledHistogram {
+        final Histogram histogram;
+        final double scale;
+
+        ScaledHistogram(Histogram histogram, double scale) {
+            this.histogram = histogram;
+            this.scale = scale;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+
+import p2p.utils.Compression;
+import p2p.utils.TransferUtils;
+
+/**
+ * Compressed copies of shared files, kept on disk next to the original.
+ *
+ * The first download in a given coding compresses the file while streaming
+ * it to the client and writes the same bytes to a temporary file, which
+ * becomes the cached variant once the response is complete. Later downloads
+ * send the variant with {@code sendfile} like any other file. Files stored
+ * before content addressing have no place for variants and are compressed on
+ * every request.
+ */
+public class CompressionCache {
+
+    /** Below this the framing overhead eats most of the gain. */
+    public static final long MIN_SIZE = 1024;
+
+    private final FileStore fileStore;
+    private final List<Compression.Codec> codecs;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CompressionCache(FileStore fileStore) {
+        this(fileStore, Compression.DEFAULT_CODECS);
+    }
+
+    public CompressionCache(FileStore fileStore, List<Compression.Codec> codecs) {
+        this.fileStore = fileStore;
+        this.codecs = codecs;
+    }
+
+    /** True if the response for this file depends on Accept-Encoding. */
+    public boolean isCompressible(SharedFile file) {
+        return file.getSize() >= MIN_SIZE && Compression.isCompressible(file.getContentType(), file.getFilename());
+    }
+
+    /**
+     * Chooses the coding for a download, or null to send the file as is:
+     * when the client accepts none of ours, or when an earlier compression
+     * turned out no smaller than the original.
+     */
+    public Compression.Codec negotiate(SharedFile file, String acceptEncoding) {
+        if (!isCompressible(file)) return null;
+        Compression.Codec codec = Compression.negotiate(acceptEncoding, codecs);
+        if (codec == null) return null;
+        File variant = cached(file, codec);
+        return variant != null && variant.length() >= file.getSize() ? null : codec;
+    }
+
+    /** The stored variant, or null if it has not been produced yet. */
+    public File cached(SharedFile file, Compression.Codec codec) {
+        Path path = fileStore.variantPath(file, codec.token());
+        if (path == null) return null;
+        File variant = path.toFile();
+        return variant.isFile() ? variant : null;
+    }
+
+    /** Counts a download answered from a stored variant. */
+    public void recordHit() {
+        hits.increment();
+    }
+
+    /**
+     * Compresses the file to {@code out}, saving the output as the cached
+     * variant if the whole file gets through. {@code out} is left open, so
+     * the caller ends the response only once the variant is in place.
+     */
+    public void compress(SharedFile file, Compression.Codec codec, FileChannel source, OutputStream out)
+            throws IOException {
+        misses.increment();
+        Path temp = fileStore.variantPath(file, codec.token()) == null ? null : fileStore.createTempFile();
+        if (temp == null) {
+            try (OutputStream encoded = codec.encode(CloseShieldOutputStream.wrap(out))) {
+                TransferUtils.copy(source, 0, source.size(), encoded);
+            }
+            return;
+        }
+
+        try {
+            try (OutputStream copy = new FileOutputStream(temp.toFile());
+                 OutputStream encoded = codec.encode(new TeeOutputStream(CloseShieldOutputStream.wrap(out), copy))) {
+                TransferUtils.copy(source, 0, source.size(), encoded);
+            }
+            fileStore.commitVariant(file, codec.token(), temp);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,228 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksums of one file: CRC32C and SHA-256 of the whole content and of
+ * every piece. CRC32C is cheap enough to check on every transfer; SHA-256
+ * identifies the content and is what the store is keyed by. Both are
+ * computed while the bytes stream past (see {@link Builder}), so nothing has
+ * to read the file a second time, and both run on the JDK intrinsics
+ * (SSE4.2/ARMv8 CRC instructions, SHA extensions). The whole file also gets
+ * a plain CRC32, which ZIP archives need up front for stored entries.
+ *
+ * Stored next to the object as a sidecar, all integers big-endian:
+ * <pre>
+ * "PLMF" | version (1) | size (8) | piece size (4) | CRC32C (4) | CRC32 (4) | SHA-256 (32)
+ *        | for each piece: CRC32C (4) | SHA-256 (32)
+ * </pre>
+ * Sidecars of an older version fail to read and are recomputed by
+ * {@link FileStore#manifest}.
+ */
+public final class ContentManifest {
+
+    private static final byte[] MAGIC = {'P', 'L', 'M', 'F'};
+    private static final byte VERSION = 2;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 8 + 4 + 4 + 4 + PieceManifest.HASH_LENGTH;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final PieceManifest pieces;
+    private final int crc32c;
+    private final int crc32;
+    private final byte[] sha256;
+    private final int[] pieceCrcs;
+
+    ContentManifest(PieceManifest pieces, int crc32c, int crc32, byte[] sha256, int[] pieceCrcs) {
+        if (pieceCrcs.length != pieces.getPieceCount()) throw new IllegalArgumentException("Expected one CRC per piece");
+        this.pieces = pieces;
+        this.crc32c = crc32c;
+        this.crc32 = crc32;
+        this.sha256 = sha256;
+        this.pieceCrcs = pieceCrcs;
+    }
+
+    /** Reads {@code path} once and checksums it. */
+    public static ContentManifest compute(Path path, int pieceSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Builder builder = new Builder(pieceSize);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = 0;
+            int read;
+            while ((read = channel.read(buffer.clear(), position)) > 0) {
+                builder.update(buffer.flip());
+                position += read;
+            }
+            return builder.build();
+        }
+    }
+
+    public static ContentManifest read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) throw new IOException("Not a manifest: " + path);
+            ByteBuffer data = ByteBuffer.allocate((int) length);
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) throw new IOException("Manifest shrank while being read: " + path);
+            }
+            data.flip();
+            byte[] magic = new byte[MAGIC.length];
+            data.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || data.get() != VERSION) throw new IOException("Not a manifest: " + path);
+            long size = data.getLong();
+            int pieceSize = data.getInt();
+            int crc32c = data.getInt();
+            int crc32 = data.getInt();
+            byte[] sha256 = new byte[PieceManifest.HASH_LENGTH];
+            data.get(sha256);
+            int count = data.remaining() / (4 + PieceManifest.HASH_LENGTH);
+            int[] pieceCrcs = new int[count];
+            byte[] pieceHashes = new byte[count * PieceManifest.HASH_LENGTH];
+            for (int i = 0; i < count; i++) {
+                pieceCrcs[i] = data.getInt();
+                data.get(pieceHashes, i * PieceManifest.HASH_LENGTH, PieceManifest.HASH_LENGTH);
+            }
+            try {
+                return new ContentManifest(new PieceManifest(size, pieceSize, pieceHashes), crc32c, crc32, sha256, pieceCrcs);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt manifest " + path + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        int count = getPieceCount();
+        ByteBuffer data = ByteBuffer.allocate(HEADER_LENGTH + count * (4 + PieceManifest.HASH_LENGTH));
+        data.put(MAGIC).put(VERSION).putLong(getSize()).putInt(getPieceSize()).putInt(crc32c).putInt(crc32).put(sha256);
+        byte[] hashes = pieces.getHashes();
+        for (int i = 0; i < count; i++) {
+            data.putInt(pieceCrcs[i]).put(hashes, i * PieceManifest.HASH_LENGTH, PieceManifest.HASH_LENGTH);
+        }
+        data.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+
+    /** The piece hashes, as offered to peers by {@link FileSharer}. */
+    public PieceManifest getPieces() {
+        return pieces;
+    }
+
+    public long getSize() {
+        return pieces.getSize();
+    }
+
+    public int getPieceSize() {
+        return pieces.getPieceSize();
+    }
+
+    public int getPieceCount() {
+        return pieces.getPieceCount();
+    }
+
+    public int getCrc32c() {
+        return crc32c;
+    }
+
+    /** CRC32 of the whole file, as ZIP uses. */
+    public int getCrc32() {
+        return crc32;
+    }
+
+    public byte[] getSha256() {
+        return sha256.clone();
+    }
+
+    public String getSha256Hex() {
+        return HexFormat.of().formatHex(sha256);
+    }
+
+    public int getPieceCrc32c(int piece) {
+        return pieceCrcs[piece];
+    }
+
+    public byte[] getPieceSha256(int piece) {
+        int from = piece * PieceManifest.HASH_LENGTH;
+        return Arrays.copyOfRange(pieces.getHashes(), from, from + PieceManifest.HASH_LENGTH);
+    }
+
+    /**
+     * Checksums content fed to it in order, cutting it into pieces of
+     * {@code pieceSize} bytes. Not thread-safe.
+     */
+    public static final class Builder {
+        private final int pieceSize;
+        private final MessageDigest digest = FileStore.newDigest();
+        private final CRC32C crc = new CRC32C();
+        private final CRC32 zipCrc = new CRC32();
+        private final MessageDigest pieceDigest = FileStore.newDigest();
+        private final CRC32C pieceCrc = new CRC32C();
+        private byte[] pieceHashes = new byte[16 * PieceManifest.HASH_LENGTH];
+        private int[] pieceCrcs = new int[16];
+        private int pieceCount;
+        private int pieceFill; // bytes of the current piece seen so far
+        private long size;
+
+        public Builder(int pieceSize) {
+            if (pieceSize <= 0) throw new IllegalArgumentException("Piece size must be positive");
+            this.pieceSize = pieceSize;
+        }
+
+        public void update(byte[] bytes, int offset, int length) {
+            update(ByteBuffer.wrap(bytes, offset, length));
+        }
+
+        /** Consumes the remaining bytes of {@code data}. */
+        public void update(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                int n = Math.min(data.remaining(), pieceSize - pieceFill);
+                ByteBuffer piece = data.slice(data.position(), n);
+                digest.update(piece);
+                crc.update(piece.rewind());
+                zipCrc.update(piece.rewind());
+                pieceDigest.update(piece.rewind());
+                pieceCrc.update(piece.rewind());
+                data.position(data.position() + n);
+                size += n;
+                pieceFill += n;
+                if (pieceFill == pieceSize) finishPiece();
+            }
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public ContentManifest build() {
+            if (pieceFill > 0) finishPiece();
+            PieceManifest pieces = new PieceManifest(size, pieceSize,
+                    Arrays.copyOf(pieceHashes, pieceCount * PieceManifest.HASH_LENGTH));
+            return new ContentManifest(pieces, (int) crc.getValue(), (int) zipCrc.getValue(), digest.digest(),
+                    Arrays.copyOf(pieceCrcs, pieceCount));
+        }
+
+        private void finishPiece() {
+            if (pieceCount == pieceCrcs.length) {
+                pieceCrcs = Arrays.copyOf(pieceCrcs, pieceCount * 2);
+                pieceHashes = Arrays.copyOf(pieceHashes, pieceCount * 2 * PieceManifest.HASH_LENGTH);
+            }
+            System.arraycopy(pieceDigest.digest(), 0, pieceHashes, pieceCount * PieceManifest.HASH_LENGTH,
+                    PieceManifest.HASH_LENGTH);
+            pieceCrcs[pieceCount++] = (int) pieceCrc.getValue();
+            pieceCrc.reset();
+            pieceFill = 0;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import p2p.config.StorageConfig;
+import p2p.utils.TimingWheel;
+
+/**
+ * Removes shares when their time is up, when their download budget is spent,
+ * or when stored files exceed the disk quota.
+ *
+ * Expiry deadlines live in a {@link TimingWheel} advanced by one background
+ * thread, so a sweep only touches shares that are actually due. The quota is
+ * enforced on upload by removing the least recently downloaded shares until
+ * the {@link FileStore} is back under it; removing a share whose content is
+ * still referenced by another share frees nothing, so eviction moves on to
+ * the next one.
+ *
+ * Files preallocated for upload sessions count towards the quota too, and
+ * each sweep drops the sessions that have gone idle.
+ */
+public class EvictionManager implements Closeable {
+
+    public enum Reason { EXPIRED, DOWNLOAD_LIMIT, QUOTA }
+
+    private final FileRegistry registry;
+    private final FileStore fileStore;
+    private final StorageConfig config;
+    private final UploadSessionManager uploadSessions; // null when there are none
+    private final LongSupplier clock;
+    private final TimingWheel<String> expirations;
+    private final ScheduledExecutorService sweeper;
+    private final Map<String, AtomicInteger> downloadCounts = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Boolean> recentlyUsed = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong reclaimedEntries = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final Map<Reason, AtomicLong> reclaimedByReason = new ConcurrentHashMap<>();
+
+    public EvictionManager(FileRegistry registry, FileStore fileStore, StorageConfig config) {
+        this(registry, fileStore, config, null);
+    }
+
+    public EvictionManager(FileRegistry registry, FileStore fileStore, StorageConfig config,
+                           UploadSessionManager uploadSessions) {
+        this(registry, fileStore, config, uploadSessions, System::currentTimeMillis);
+    }
+
+    /** Reads the time from {@code clock}, so tests can move it. */
+    EvictionManager(FileRegistry registry, FileStore fileStore, StorageConfig config,
+                    UploadSessionManager uploadSessions, LongSupplier clock) {
+        this.registry = registry;
+        this.fileStore = fileStore;
+        this.config = config;
+        this.uploadSessions = uploadSessions;
+        this.clock = clock;
+        this.expirations = new TimingWheel<>(config.getSweepIntervalMillis(), clock.getAsLong());
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "peerlink-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Reason reason : Reason.values()) {
+            reclaimedByReason.put(reason, new AtomicLong());
+        }
+    }
+
+    /** Loads the existing shares in the background and starts sweeping. */
+    public void start() {
+        sweeper.execute(() -> {
+            registry.forEach(file -> {
+                if (file.getExpiresAt() > 0) expirations.schedule(file.getId(), file.getExpiresAt());
+                remember(file);
+            });
+            enforceQuota(null, 0);
+        });
+        long interval = config.getSweepIntervalMillis();
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /** Starts tracking a newly registered share and makes room for it if the quota is exceeded. */
+    public void track(SharedFile file) {
+        if (file.getExpiresAt() > 0) expirations.schedule(file.getId(), file.getExpiresAt());
+        remember(file);
+        enforceQuota(file.getId(), 0);
+    }
+
+    /**
+     * Removes least recently used shares until {@code bytes} more would fit
+     * under the quota. Does nothing if they could not fit even in an empty store.
+     */
+    public void makeRoom(long bytes) {
+        long quota = config.getDiskQuotaBytes();
+        if (quota > 0 && bytes >= 0 && bytes <= quota) enforceQuota(null, bytes);
+    }
+
+    private void remember(SharedFile file) {
+        synchronized (recentlyUsed) {
+            recentlyUsed.put(file.getId(), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Counts a download against the share's budget and marks it as recently
+     * used. Returns false if the share is expired or its budget is already
+     * spent. The download that uses the last allowance is still served; the
+     * share is removed right away so later requests get a 404.
+     */
+    public boolean admitDownload(SharedFile file) {
+        int left = take(file);
+        if (left < 0) return false;
+        if (left == 0) reclaim(file.getId(), Reason.DOWNLOAD_LIMIT);
+        return true;
+    }
+
+    /**
+     * Admits one download of every share in {@code files}, or of none: if one
+     * is expired or out of budget, the allowances already taken for the
+     * others are given back and null is returned. Shares whose last
+     * allowance was taken are not removed yet, since their files still have
+     * to be read; they are returned for {@link #reclaimSpent} once that is done.
+     */
+    public List<SharedFile> admitDownloads(List<SharedFile> files) {
+        List<SharedFile> spent = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            int left = take(files.get(i));
+            if (left < 0) {
+                for (SharedFile taken : files.subList(0, i)) giveBack(taken);
+                return null;
+            }
+            if (left == 0) spent.add(files.get(i));
+        }
+        return spent;
+    }
+
+    /** Removes the shares {@link #admitDownloads} found spent, after their files have been sent. */
+    public void reclaimSpent(List<SharedFile> files) {
+        for (SharedFile file : files) {
+            reclaim(file.getId(), Reason.DOWNLOAD_LIMIT);
+        }
+    }
+
+    /**
+     * Takes one allowance from the share's budget; returns how many are left
+     * after it ({@link Integer#MAX_VALUE} without a limit), or -1 if the
+     * share is expired or out of budget.
+     */
+    private int take(SharedFile file) {
+        if (file.isExpired(clock.getAsLong())) {
+            reclaim(file.getId(), Reason.EXPIRED);
+            return -1;
+        }
+        synchronized (recentlyUsed) {
+            recentlyUsed.get(file.getId());
+        }
+        int max = file.getMaxDownloads();
+        if (max <= 0) return Integer.MAX_VALUE;
+
+        // A refused request takes nothing, so a batch giving back its allowances restores the count exactly
+        AtomicInteger counter = downloadCounts.computeIfAbsent(file.getId(), id -> new AtomicInteger());
+        int count = counter.getAndUpdate(n -> n < max ? n + 1 : n);
+        if (count >= max) return -1;
+        // A racing request may have spent the budget and removed the share already; drop the counter
+        // this call may have recreated after that, so it does not outlive the share
+        if (registry.get(file.getId()) == null) {
+            downloadCounts.remove(file.getId(), counter);
+            return -1;
+        }
+        return max - count - 1;
+    }
+
+    private void giveBack(SharedFile file) {
+        if (file.getMaxDownloads() <= 0) return;
+        AtomicInteger counter = downloadCounts.get(file.getId());
+        if (counter != null) counter.decrementAndGet();
+    }
+
+    void sweep() {
+        long now = clock.getAsLong();
+        long before = reclaimedEntries.get();
+        long beforeBytes = reclaimedBytes.get();
+        expirations.advance(now, id -> {
+            SharedFile file = registry.get(id);
+            if (file != null && file.isExpired(now)) reclaim(id, Reason.EXPIRED);
+        });
+        long swept = reclaimedEntries.get() - before;
+        if (swept > 0) {
+            System.out.println("Reclaimed " + swept + " shares (" + (reclaimedBytes.get() - beforeBytes) + " bytes)");
+        }
+        int idleSessions = uploadSessions == null ? 0 : uploadSessions.reapIdle(now);
+        if (idleSessions > 0) {
+            System.out.println("Dropped " + idleSessions + " idle upload sessions");
+        }
+    }
+
+    /**
+     * Removes least recently used shares (other than {@code keepId}) until
+     * the store and open upload sessions, plus {@code extraBytes}, fit under the quota.
+     */
+    private void enforceQuota(String keepId, long extraBytes) {
+        long quota = config.getDiskQuotaBytes();
+        if (quota <= 0) return;
+        while (true) {
+            if (getUsedBytes() + extraBytes <= quota) return;
+            String victim = null;
+            synchronized (recentlyUsed) {
+                Iterator<String> ids = recentlyUsed.keySet().iterator();
+                while (ids.hasNext()) {
+                    String id = ids.next();
+                    if (!id.equals(keepId)) {
+                        victim = id;
+                        break;
+                    }
+                }
+            }
+            if (victim == null || !reclaim(victim, Reason.QUOTA)) return;
+        }
+    }
+
+    /** Removes a share and its file; returns false if it was already gone. */
+    private boolean reclaim(String id, Reason reason) {
+        SharedFile removed;
+        try {
+            removed = registry.remove(id);
+        } catch (IOException e) {
+            System.err.println("Error removing share " + id + ": " + e.getMessage());
+            return false;
+        }
+        synchronized (recentlyUsed) {
+            recentlyUsed.remove(id);
+        }
+        downloadCounts.remove(id);
+        if (removed == null) return false;
+
+        try {
+            fileStore.release(removed);
+        } catch (IOException e) {
+            System.err.println("Error deleting " + removed.getPath() + ": " + e.getMessage());
+        }
+        reclaimedEntries.incrementAndGet();
+        reclaimedBytes.addAndGet(removed.getSize());
+        reclaimedByReason.get(reason).incrementAndGet();
+        return true;
+    }
+
+    public long getReclaimedEntries() {
+        return reclaimedEntries.get();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /** Number of shares with a download count, for tests. */
+    int trackedDownloadCounts() {
+        return downloadCounts.size();
+    }
+
+    public long getReclaimedEntries(Reason reason) {
+        return reclaimedByReason.get(reason).get();
+    }
+
+    /** Bytes counted against the quota: stored files and preallocated upload sessions. */
+    public long getUsedBytes() {
+        return fileStore.getStoredBytes() + (uploadSessions == null ? 0 : uploadSessions.getReservedBytes());
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+}
@@ -0,0 +1,108 @@
+package p2p.service;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import p2p.utils.TransferUtils;
+
+/**
+ * Client side of the {@link FileSharer} protocol: fetches one file by share
+ * code and checks it against the size and checksum the peer announced.
+ */
+public class FileReceiver {
+
+    private FileReceiver() {
+    }
+
+    /**
+     * Downloads the file offered under {@code code} into {@code directory}
+     * and returns its path. A partially received or corrupt file is deleted.
+     */
+    public static Path download(String host, int port, int code, Path directory) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            sendRequest(channel, FileSharer.OP_GET, code, -1);
+            byte result = readStatus(channel);
+            if (result == FileSharer.STATUS_NOT_FOUND) throw new IOException("No file is shared under code " + code);
+            if (result != FileSharer.STATUS_OK) throw new IOException("Peer rejected the request (status " + result + ")");
+
+            String name = new File(readString(channel, StandardCharsets.UTF_8)).getName();
+            long size = readFully(channel, 8).getLong();
+            String checksum = readString(channel, StandardCharsets.US_ASCII);
+
+            Path target = directory.resolve(name.isEmpty() ? "unnamed-file" : name);
+            MessageDigest digest = FileStore.newDigest();
+            long received = 0;
+            try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(TransferUtils.COPY_BUFFER_SIZE);
+                while (received < size) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), size - received));
+                    if (channel.read(buffer) < 0) break;
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        received += file.write(buffer);
+                    }
+                }
+            }
+
+            if (received != size) {
+                Files.deleteIfExists(target);
+                throw new EOFException("Connection closed after " + received + " of " + size + " bytes");
+            }
+            if (!checksum.isEmpty() && !checksum.equalsIgnoreCase(HexFormat.of().formatHex(digest.digest()))) {
+                Files.deleteIfExists(target);
+                throw new IOException("Checksum mismatch for " + name);
+            }
+            return target;
+        }
+    }
+
+    /** Writes a request; {@code piece} is only sent with OP_PIECE. */
+    static void sendRequest(SocketChannel channel, byte op, int code, int piece) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(FileSharer.REQUEST_LENGTH + 4);
+        request.put(FileSharer.MAGIC).put(FileSharer.VERSION).put(op).putInt(code);
+        if (op == FileSharer.OP_PIECE) request.putInt(piece);
+        request.flip();
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+    }
+
+    /** Reads the response preamble and returns its status byte. */
+    static byte readStatus(SocketChannel channel) throws IOException {
+        ByteBuffer status = readFully(channel, FileSharer.MAGIC.length + 2);
+        byte[] magic = new byte[FileSharer.MAGIC.length];
+        status.get(magic);
+        if (!Arrays.equals(magic, FileSharer.MAGIC) || status.get() != FileSharer.VERSION) {
+            throw new IOException("Peer does not speak the PeerLink protocol");
+        }
+        return status.get();
+    }
+
+    static String readString(SocketChannel channel, Charset charset) throws IOException {
+        int length = readFully(channel, 2).getShort() & 0xFFFF;
+        return new String(readFully(channel, length).array(), charset);
+    }
+
+    static ByteBuffer readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("Connection closed by peer");
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,466 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Share id registry that survives restarts.
+ *
+ * Every change is appended to {@code registry.log}, which is memory-mapped in
+ * fixed-size segments, as a length-prefixed, CRC-checked record. The index is
+ * an open-addressing hash table that maps each id to the offset of its latest
+ * record, so it holds two primitive arrays rather than one object per entry.
+ * Lookups probe the index and decode the record straight from the mapping;
+ * they never issue a read() and never take a lock.
+ *
+ * At startup the mapped log is scanned once to rebuild the index. A torn
+ * record at the end (from a crash mid-append) is zeroed out. Once superseded
+ * records outnumber live ones, the log is rewritten with only the live
+ * records and swapped in atomically.
+ */
+public class FileRegistry implements Closeable {
+
+    static final int SEGMENT_SIZE = 32 * 1024 * 1024;
+
+    private static final String LOG_NAME = "registry.log";
+    private static final byte OP_PUT = 1;          // entries without expiry fields, still read from older logs
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_PUT_EXPIRING = 3;   // entries without a display filename, still read from older logs
+    private static final byte OP_PUT_NAMED = 4;
+    private static final int SKIP_TO_NEXT_SEGMENT = -1;
+    private static final long COMPACT_MIN_GARBAGE = 10_000;
+
+    private final Path logPath;
+    private final Object writeLock = new Object();
+    private volatile Generation current;
+    private long garbage; // records in the log that no longer describe a live entry
+
+    public FileRegistry(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.logPath = directory.resolve(LOG_NAME);
+        this.current = Generation.open(logPath);
+        this.garbage = current.replay();
+
+        if (garbage > COMPACT_MIN_GARBAGE && garbage > current.index.live) {
+            compact();
+        }
+    }
+
+    public SharedFile get(String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        Generation generation = current;
+        long offset = generation.index.find(generation, ByteBuffer.wrap(idBytes), 0, idBytes.length, hash(idBytes));
+        return offset < 0 ? null : generation.decode(offset);
+    }
+
+    public int size() {
+        return current.index.live;
+    }
+
+    /** Visits every live entry. Entries added or removed meanwhile may or may not be seen. */
+    public void forEach(Consumer<SharedFile> action) {
+        Generation generation = current;
+        Index index = generation.index;
+        for (int i = 0; i < index.slots.length(); i++) {
+            long slot = index.slots.get(i);
+            if (slot > 0) action.accept(generation.decode(slot - 1));
+        }
+    }
+
+    public void put(SharedFile file) throws IOException {
+        ByteBuffer record = encodePut(file);
+        synchronized (writeLock) {
+            Generation generation = current;
+            long offset = generation.append(record);
+            if (generation.index(offset)) garbage++;
+            maybeCompact();
+        }
+    }
+
+    public SharedFile remove(String id) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        synchronized (writeLock) {
+            Generation generation = current;
+            int hash = hash(idBytes);
+            long offset = generation.index.find(generation, ByteBuffer.wrap(idBytes), 0, idBytes.length, hash);
+            if (offset < 0) return null;
+            SharedFile removed = generation.decode(offset);
+            generation.append(encodeRemove(idBytes));
+            generation.index.delete(generation, ByteBuffer.wrap(idBytes), 0, idBytes.length, hash);
+            garbage += 2;
+            maybeCompact();
+            return removed;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            current.close();
+        }
+    }
+
+    private void maybeCompact() throws IOException {
+        if (garbage > COMPACT_MIN_GARBAGE && garbage > current.index.live) {
+            compact();
+        }
+    }
+
+    /** Rewrites the log with one record per live entry and swaps it in atomically. */
+    private void compact() throws IOException {
+        synchronized (writeLock) {
+            Generation old = current;
+            Path tmp = logPath.resolveSibling(LOG_NAME + ".tmp");
+            Files.deleteIfExists(tmp);
+            Generation compacted = Generation.open(tmp);
+
+            Index index = old.index;
+            for (int i = 0; i < index.slots.length(); i++) {
+                long slot = index.slots.get(i);
+                if (slot <= 0) continue;
+                compacted.index(compacted.append(old.rawRecord(slot - 1)));
+            }
+            compacted.force();
+            // Mappings and the channel follow the file across the rename
+            Files.move(tmp, logPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            current = compacted;
+            garbage = 0;
+            old.close();
+        }
+    }
+
+    /** A mapped log file and the index built over it. */
+    private static final class Generation {
+        private final FileChannel channel;
+        private volatile MappedByteBuffer[] segments;
+        private volatile Index index = new Index(1024);
+        private long writePosition;
+
+        private Generation(FileChannel channel, MappedByteBuffer[] segments) {
+            this.channel = channel;
+            this.segments = segments;
+        }
+
+        static Generation open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            int count = (int) Math.max(1, (channel.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+            return new Generation(channel, segments);
+        }
+
+        /** Scans the log, rebuilding the index; returns the number of superseded records. */
+        long replay() {
+            long superseded = 0;
+            CRC32 crc = new CRC32();
+            MappedByteBuffer[] segs = segments;
+            for (int s = 0; s < segs.length; s++) {
+                MappedByteBuffer segment = segs[s];
+                int pos = 0;
+                while (pos <= SEGMENT_SIZE - 4) {
+                    int length = segment.getInt(pos);
+                    if (length == SKIP_TO_NEXT_SEGMENT) break;
+                    if (length == 0) {
+                        writePosition = (long) s * SEGMENT_SIZE + pos;
+                        return superseded;
+                    }
+                    if (length < 5 || length > SEGMENT_SIZE - pos - 4 || !checksumMatches(crc, segment, pos, length)) {
+                        System.err.println("Registry log has a torn record at offset " + ((long) s * SEGMENT_SIZE + pos)
+                                + ", discarding the rest of the log");
+                        for (int i = pos; i < SEGMENT_SIZE; i++) segment.put(i, (byte) 0);
+                        writePosition = (long) s * SEGMENT_SIZE + pos;
+                        return superseded;
+                    }
+
+                    long offset = (long) s * SEGMENT_SIZE + pos;
+                    byte op = segment.get(pos + 4);
+                    int idLength = segment.getShort(pos + 5) & 0xFFFF;
+                    int idPos = pos + 7;
+                    int hash = hash(segment, idPos, idLength);
+                    if (op == OP_PUT || op == OP_PUT_EXPIRING || op == OP_PUT_NAMED) {
+                        if (index(offset, segment, idPos, idLength, hash)) superseded++;
+                    } else if (op == OP_REMOVE) {
+                        index.delete(this, segment, idPos, idLength, hash);
+                        superseded += 2;
+                    }
+                    pos += 4 + length;
+                }
+            }
+            writePosition = (long) segs.length * SEGMENT_SIZE;
+            return superseded;
+        }
+
+        private static boolean checksumMatches(CRC32 crc, MappedByteBuffer segment, int pos, int length) {
+            crc.reset();
+            crc.update(segment.slice(pos + 4, length - 4));
+            return (int) crc.getValue() == segment.getInt(pos + length);
+        }
+
+        /** Points the index at the PUT record stored at {@code offset}; true if it replaced an entry. */
+        boolean index(long offset) {
+            MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+            int pos = (int) (offset % SEGMENT_SIZE);
+            int idLength = segment.getShort(pos + 5) & 0xFFFF;
+            return index(offset, segment, pos + 7, idLength, hash(segment, pos + 7, idLength));
+        }
+
+        private boolean index(long offset, ByteBuffer idSource, int idPos, int idLength, int hash) {
+            if (index.needsResize()) index = index.resized(this);
+            return index.insert(this, offset, idSource, idPos, idLength, hash);
+        }
+
+        /** Appends a complete record, starting a new segment if it does not fit; returns its offset. */
+        long append(ByteBuffer record) throws IOException {
+            int length = record.remaining();
+            int pos = (int) (writePosition % SEGMENT_SIZE);
+            if (pos + length > SEGMENT_SIZE) {
+                if (SEGMENT_SIZE - pos >= 4) segmentAt(writePosition).putInt(pos, SKIP_TO_NEXT_SEGMENT);
+                writePosition += SEGMENT_SIZE - pos;
+                pos = 0;
+            }
+            long offset = writePosition;
+            segmentAt(offset).put(pos, record, record.position(), length);
+            writePosition += length;
+            return offset;
+        }
+
+        private MappedByteBuffer segmentAt(long offset) throws IOException {
+            int s = (int) (offset / SEGMENT_SIZE);
+            MappedByteBuffer[] segs = segments;
+            if (s >= segs.length) {
+                MappedByteBuffer[] grown = java.util.Arrays.copyOf(segs, s + 1);
+                for (int i = segs.length; i <= s; i++) {
+                    grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+                }
+                segments = grown;
+                segs = grown;
+            }
+            return segs[s];
+        }
+
+        ByteBuffer rawRecord(long offset) {
+            MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+            int pos = (int) (offset % SEGMENT_SIZE);
+            return segment.slice(pos, 4 + segment.getInt(pos));
+        }
+
+        boolean idEquals(long offset, ByteBuffer idSource, int idPos, int idLength) {
+            MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+            int pos = (int) (offset % SEGMENT_SIZE);
+            if ((segment.getShort(pos + 5) & 0xFFFF) != idLength) return false;
+            return segment.slice(pos + 7, idLength).equals(idSource.slice(idPos, idLength));
+        }
+
+        SharedFile decode(long offset) {
+            ByteBuffer record = rawRecord(offset);
+            byte op = record.get(4);
+            record.position(5);
+            String id = readString(record);
+            String path = readString(record);
+            long size = record.getLong();
+            String contentType = readString(record);
+            String checksum = readString(record);
+            long createdAt = record.getLong();
+            if (op == OP_PUT) {
+                return new SharedFile(id, path, size, contentType, checksum, createdAt);
+            }
+            long expiresAt = record.getLong();
+            int maxDownloads = record.getInt();
+            String filename = op == OP_PUT_NAMED ? readString(record) : null;
+            return new SharedFile(id, path, filename, size, contentType, checksum, createdAt, expiresAt, maxDownloads);
+        }
+
+        void force() {
+            for (MappedByteBuffer segment : segments) segment.force();
+        }
+
+        void close() throws IOException {
+            force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Open-addressing hash table from id hash to record offset + 1 (0 marks an
+     * empty slot, -1 a deleted one). Only the writer mutates it; readers rely
+     * on the volatile slot writes and always confirm a hit against the id
+     * stored in the record.
+     */
+    private static final class Index {
+        private final int mask;
+        private final int[] hashes;
+        private final AtomicLongArray slots;
+        private int used;   // live + deleted slots
+        private int live;
+
+        Index(int capacity) {
+            this.mask = capacity - 1;
+            this.hashes = new int[capacity];
+            this.slots = new AtomicLongArray(capacity);
+        }
+
+        boolean needsResize() {
+            return (used + 1) * 2 > hashes.length;
+        }
+
+        Index resized(Generation generation) {
+            int capacity = hashes.length;
+            while ((live + 1) * 2 > capacity / 2) capacity *= 2; // keep the load at or below 25% after rehash
+            Index resized = new Index(capacity);
+            for (int i = 0; i < hashes.length; i++) {
+                long slot = slots.get(i);
+                if (slot > 0) resized.place(hashes[i], slot);
+            }
+            return resized;
+        }
+
+        private void place(int hash, long slot) {
+            int i = hash & mask;
+            while (slots.get(i) != 0) i = (i + 1) & mask;
+            hashes[i] = hash;
+            slots.set(i, slot);
+            used++;
+            live++;
+        }
+
+        long find(Generation generation, ByteBuffer idSource, int idPos, int idLength, int hash) {
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                long slot = slots.get(i);
+                if (slot == 0) return -1;
+                if (slot > 0 && hashes[i] == hash && generation.idEquals(slot - 1, idSource, idPos, idLength)) {
+                    return slot - 1;
+                }
+            }
+        }
+
+        boolean insert(Generation generation, long offset, ByteBuffer idSource, int idPos, int idLength, int hash) {
+            int firstDeleted = -1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                long slot = slots.get(i);
+                if (slot == 0) {
+                    int target = firstDeleted >= 0 ? firstDeleted : i;
+                    hashes[target] = hash;
+                    slots.set(target, offset + 1);
+                    if (firstDeleted < 0) used++;
+                    live++;
+                    return false;
+                }
+                if (slot < 0) {
+                    if (firstDeleted < 0) firstDeleted = i;
+                } else if (hashes[i] == hash && generation.idEquals(slot - 1, idSource, idPos, idLength)) {
+                    slots.set(i, offset + 1);
+                    return true;
+                }
+            }
+        }
+
+        void delete(Generation generation, ByteBuffer idSource, int idPos, int idLength, int hash) {
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                long slot = slots.get(i);
+                if (slot == 0) return;
+                if (slot > 0 && hashes[i] == hash && generation.idEquals(slot - 1, idSource, idPos, idLength)) {
+                    slots.set(i, -1);
+                    live--;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int hash(byte[] bytes) {
+        return hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    private static int hash(ByteBuffer source, int pos, int length) {
+        int h = 0x9747b28c;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + source.get(pos + i);
+        }
+        // Spread the bits so that linear probing on the low bits behaves
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static ByteBuffer encodePut(SharedFile file) {
+        byte[] id = bytes(file.getId());
+        byte[] path = bytes(file.getPath());
+        byte[] contentType = bytes(file.getContentType());
+        byte[] checksum = bytes(file.getChecksum());
+        byte[] filename = bytes(file.getFilename());
+        int bodyLength = 1 + 8 + 8 + 8 + 4 + 2 * 5 + id.length + path.length + contentType.length + checksum.length
+                + filename.length;
+
+        ByteBuffer record = ByteBuffer.allocate(4 + bodyLength + 4);
+        record.putInt(bodyLength + 4);
+        record.put(OP_PUT_NAMED);
+        putString(record, id);
+        putString(record, path);
+        record.putLong(file.getSize());
+        putString(record, contentType);
+        putString(record, checksum);
+        record.putLong(file.getCreatedAt());
+        record.putLong(file.getExpiresAt());
+        record.putInt(file.getMaxDownloads());
+        putString(record, filename);
+        return seal(record, bodyLength);
+    }
+
+    private static ByteBuffer encodeRemove(byte[] id) {
+        int bodyLength = 1 + 2 + id.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + bodyLength + 4);
+        record.putInt(bodyLength + 4);
+        record.put(OP_REMOVE);
+        putString(record, id);
+        return seal(record, bodyLength);
+    }
+
+    private static ByteBuffer seal(ByteBuffer record, int bodyLength) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, bodyLength);
+        record.putInt((int) crc.getValue());
+        return record.flip();
+    }
+
+    private static byte[] bytes(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("Registry field too long");
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /** Lists every live entry; meant for startup and maintenance tasks, not the request path. */
+    public List<SharedFile> snapshot() {
+        List<SharedFile> files = new ArrayList<>(size());
+        forEach(files::add);
+        return files;
+    }
+}
@@ -1,136 +1,488 @@
 package p2p.service;
 
-import p2p.utils.UploadUtils;
+import p2p.config.TransferConfig;
+import p2p.metrics.Counter;
+import p2p.metrics.Gauge;
+import p2p.metrics.Histogram;
+import p2p.metrics.MetricsRegistry;
+import p2p.utils.ShareCodeAllocator;
+import p2p.utils.TimingWheel;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
 
-public class FileSharer {
+/**
+ * Serves offered files to peers over one port.
+ *
+ * One selector thread multiplexes every connection: it accepts, reads the
+ * handshake, looks the share code up and streams the file with transferTo
+ * (sendfile on Linux) whenever the socket can take more bytes. Any number of
+ * peers can download the same file at the same time.
+ *
+ * Wire format (all integers big-endian):
+ * <pre>
+ * request:  "PLNK" | version (1) | op (1) | code (4) [| piece index (4), PIECE only]
+ * response: "PLNK" | version (1) | status (1)
+ *           and, if status is OK:
+ *   GET       name length (2) | name (UTF-8) | size (8) | checksum length (2) | checksum (hex SHA-256) | size bytes
+ *   MANIFEST  name length (2) | name (UTF-8) | size (8) | checksum length (2) | checksum (hex SHA-256)
+ *             | piece size (4) | piece count (4) | SHA-256 of each piece (32 each)
+ *   PIECE     piece index (4) | length (4) | length bytes
+ * </pre>
+ * The connection is closed after a GET. After MANIFEST and PIECE it stays
+ * open for the next request, which is how a {@link SwarmDownloader} pulls
+ * pieces from several peers at once. A peer that is itself still
+ * downloading a share re-serves the pieces it already has under the same
+ * code ({@link #offerPieces}) and answers NOT_FOUND for the others.
+ *
+ * Share codes come from a {@link ShareCodeAllocator} and go back to it when
+ * an offer is withdrawn or the share it points to expires.
+ */
+public class FileSharer implements Closeable {
 
-    private HashMap<Integer, String> availableFiles;  // availableFiles stores files you want to share, using an integer port code as the key and the file path as the value.
+    public static final byte[] MAGIC = {'P', 'L', 'N', 'K'};
+    public static final byte VERSION = 1;
+    public static final byte OP_GET = 1;
+    public static final byte OP_MANIFEST = 2;
+    public static final byte OP_PIECE = 3;
 
-    public FileSharer() {   // This is called a constructor. A constructor is a special method that runs automatically when you create an object of this class.
-        availableFiles = new HashMap<>();  // This creates a new empty HashMap.
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_BAD_REQUEST = 2;
+
+    static final int REQUEST_LENGTH = MAGIC.length + 1 + 1 + 4;
+    private static final long IDLE_TIMEOUT_MILLIS = 30_000;
+
+    private final Map<Integer, Offer> availableFiles = new ConcurrentHashMap<>();  // share code -> the file offered under it; read by the selector thread, written by anyone calling offerFile
+    private final ShareCodeAllocator codes;
+    private final TimingWheel<Offer> expirations = new TimingWheel<>(1000, System.currentTimeMillis());  // advanced by the selector thread
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread selectorThread;
+    private volatile boolean running;
+    private final TransferScheduler transfers;
+    private boolean ownsTransfers;
+    private final List<SelectionKey> throttled = new ArrayList<>(); // waiting for bandwidth; selector thread only
+
+    private final Gauge openConnections;
+    private final Counter sentBytes;
+    private final Counter sentFiles;
+    private final Counter sentPieces;
+    private final Counter failures;
+    private final Histogram transferNanos;
+
+    public FileSharer() {
+        this(new ShareCodeAllocator());
     }
 
-    public int offerFile(String filePath) {   // This method allows you to share a file. It takes the file path as an argument and returns a unique port code. public → anyone can call this method from outside the class.filePath → the full path of the file you want to share, like "C:/file.txt".
-        int port;
-        while (true) {  // This loop keeps trying to generate a unique port code until it finds one that isn't already used.
-            port = UploadUtils.generateCode();  // generates a random number (like 1234, 5678, etc.). generateCode() is a method in another class called UploadUtils. uploadutils me genertate code nam ka method bna hoga jiske andar hmne math.random use krke sirf 4 digit ka code generate kiya h
-            if (!availableFiles.containsKey(port)) {  // containsKey() is a predefined method of Java’s HashMap class.Checks if a specific key exists in the HashMap.
-                availableFiles.put(port, filePath);
-                return port;
-            }
-        }
+    public FileSharer(ShareCodeAllocator codes) {
+        this(codes, new MetricsRegistry());
+    }
+
+    /** Registers the sharer's transfer metrics in {@code metrics} so they are exported with the rest. */
+    public FileSharer(ShareCodeAllocator codes, MetricsRegistry metrics) {
+        this(codes, metrics, new TransferScheduler(TransferConfig.fromEnvironment()));
+        this.ownsTransfers = true;
+    }
+
+    /** Paces sends through {@code transfers}, which may be shared with other servers and is not closed here. */
+    public FileSharer(ShareCodeAllocator codes, MetricsRegistry metrics, TransferScheduler transfers) {
+        this.codes = codes;
+        this.transfers = transfers;
+        this.openConnections = metrics.gauge("peerlink_peer_connections", "Open peer connections");
+        this.sentBytes = metrics.counter("peerlink_peer_sent_bytes_total", "File bytes sent to peers");
+        this.sentFiles = metrics.counter("peerlink_peer_sent_files_total", "Files sent to peers in full");
+        this.sentPieces = metrics.counter("peerlink_peer_sent_pieces_total", "Pieces sent to swarm downloaders");
+        this.failures = metrics.counter("peerlink_peer_failures_total", "Peer connections that ended in an I/O error");
+        this.transferNanos = metrics.histogram("peerlink_peer_transfer_seconds",
+                "Time from a peer's request to the last byte of the file", 1e-9);
+        metrics.gauge("peerlink_peer_offers", "Files currently offered to peers", availableFiles::size);
     }
 
-    public void startFileServer(int port) {
-        String filePath = availableFiles.get(port);  //looks up which file is stored with this code/port.
-        if (filePath == null) {
-            System.err.println("No file associated with port: " + port);
-            return;
+    /**
+     * Offers a file under a fresh share code. The checksum and piece hashes
+     * are computed here in one pass, not per download.
+     */
+    public int offerFile(String filePath) throws IOException {
+        ContentManifest manifest = ContentManifest.compute(Path.of(filePath), PieceManifest.DEFAULT_PIECE_SIZE);
+        return offerFile(filePath, new File(filePath).getName(), manifest.getSha256Hex(), manifest.getPieces(), 0);
+    }
+
+    /**
+     * Offers an already stored share, reusing the digest recorded at upload
+     * time; only the piece hashes are computed. The code is withdrawn when
+     * the share expires.
+     */
+    public int offerFile(SharedFile file) throws IOException {
+        return offerFile(file, PieceManifest.compute(Path.of(file.getPath()), PieceManifest.DEFAULT_PIECE_SIZE));
+    }
+
+    /** Offers a stored share with the piece hashes kept alongside it, so the file is not read at all. */
+    public int offerFile(SharedFile file, PieceManifest manifest) {
+        return offerFile(file.getPath(), file.getFilename(), file.getChecksum(), manifest, file.getExpiresAt());
+    }
+
+    private int offerFile(String filePath, String name, String checksum, PieceManifest manifest, long expiresAt) {
+        while (true) {
+            int code = codes.allocate();  // O(1) even when almost every code is taken
+            if (code < 0) throw new IllegalStateException("All share codes are in use");
+            Offer offer = new Offer(code, filePath, name, checksum, manifest, null);
+            if (availableFiles.putIfAbsent(code, offer) == null) {
+                if (expiresAt > 0) expirations.schedule(offer, expiresAt);
+                return code;
+            }
+            // Taken by a share re-served through offerPieces; the code comes round again later
+            codes.release(code);
         }
- // the messages from System.out.println will appear in VS Code’s terminal, not the browser console.System.err.println also prints to the VS Code terminal
- //Browser console: still won’t show anything from System.err.println because that’s Java, not JavaScript.
-        try (ServerSocket serverSocket = new ServerSocket(port)) {  // ServerSocket is like a door waiting for someone to connect. it is java class , try(...) → automatically closes the socket when done. 
-            System.out.println("Serving file '" + new File(filePath).getName() + "' on port " + port); // new File(filePath).getName() → gets just the name of the file from the full path. Tells us: “Server is ready and waiting for a client to download the file.”
-            Socket clientSocket = serverSocket.accept();// accept() waits here until a client connects. When a client connects, it returns a Socket object representing that connection.
-            System.out.println("Client connected: " + clientSocket.getInetAddress());  // clientSocket.getInetAddress() → prints the client’s IP address.
+    }
 
-            new Thread(new FileSenderHandler(clientSocket, filePath)).start();  // Creates a new thread to handle sending the file to the client. This allows the server to handle multiple clients at once. (a mini-program running at the same time). .start() → runs the thread.
-            // FileSenderHandler is a class defined below that takes care of reading the file and sending it over the network.
-            // Without a thread, your server can only send one file at a time.
-            // With a thread, multiple clients can download files at the same time.
-        } catch (IOException e) {
-            System.err.println("Error starting file server on port " + port + ": " + e.getMessage());
+    /**
+     * Serves pieces of a file offered elsewhere under {@code code}, typically
+     * one this peer is downloading. Only pieces for which {@code available}
+     * is true are served; null means the whole file is here.
+     */
+    public void offerPieces(int code, Path path, String name, String checksum, PieceManifest manifest,
+                            IntPredicate available) {
+        Offer offer = new Offer(code, path.toString(), name, checksum, manifest, available);
+        if (availableFiles.putIfAbsent(code, offer) != null) {
+            throw new IllegalStateException("Share code " + code + " is already offered here");
         }
     }
 
-    private static class FileSenderHandler implements Runnable {  // FileSenderHandler is responsible for actually sending the file to the client once they connect.
-        private final Socket clientSocket; // clientSocket → the connection to the client (so we know where to send the file). is line ka matlab h ki ye variable sirf is class ke andar hi use hoga. final → means these variables cannot change once assigned.
-        private final String filePath;  // final → means these variables cannot change once assigned.
+    public boolean withdraw(int code) {
+        Offer offer = availableFiles.remove(code);
+        if (offer == null) return false;
+        codes.release(code);
+        return true;
+    }
 
-        public FileSenderHandler(Socket clientSocket, String filePath) {
-            this.clientSocket = clientSocket;
-            this.filePath = filePath;
+    /** Withdraws {@code offer} unless its code has already been withdrawn (and maybe reused). */
+    private void expire(Offer offer) {
+        if (availableFiles.remove(offer.code, offer)) {
+            codes.release(offer.code);
         }
+    }
 
-        @Override  // Tells the compiler: “we’re overriding a method from a parent class or interface.”
-        public void run() { // Here it indicates we are implementing run() from the Runnable interface.run() is the entry point for the thread. When you call new Thread(new FileSenderHandler(...)).start(), Java calls this run() method inside the new thread.
-            try (FileInputStream fis = new FileInputStream(filePath);  // FileInputStream → reads the file from your computer. try(...) → automatically closes the file and socket when done. If file not found → FileNotFoundException (a subclass of IOException) is thrown.
-                 OutputStream oss = clientSocket.getOutputStream()) {  // clientSocket.getOutputStream() returns an OutputStream connected to the client over the network. Important detail: closing the socket's OutputStream may half-close or close the socket connection depending on implementation; you still explicitly close the socket later in finally for safety.
-                
-                // Send the filename as a header
-                String filename = new File(filePath).getName();
-                String header = "Filename: " + filename + "\n";  //Example: "Filename: song.mp3\n"
-                oss.write(header.getBytes()); // Send the header to the client. getBytes() converts the string to bytes for sending over the network.
-                
+    /** Binds the listener (port 0 picks a free one) and starts the selector thread. */
+    public void start(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-                // can i send a file whose size is around 10 mb
-                // yes bcz You are not loading the whole file into memory at once. we use the loop to read and send it in small chunks (4096 bytes at a time). This is memory efficient and works well even for large files.
-                // fis.read(buffer) → reads up to 4096 bytes (4 KB) at a time. The loop repeats until the entire file (10 MB) is transferred.
+        running = true;
+        selectorThread = new Thread(this::runLoop, "peerlink-sharer");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        System.out.println("Sharing files on port " + getPort());
+    }
 
-                // can i send file of 2 gb
-                // yes but it depends on the network speed and stability. Sending a 2 GB file over the internet can take a long time (potentially hours on a slow connection) and is more prone to interruptions. However, the code itself can handle large files because it reads and sends the file in small chunks (4096 bytes at a time) without loading the entire file into memory.
-                // For huge transfers, you might need to increase socket timeout so the connection doesn’t close if it’s slow.
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
 
-                // Send the file content
-                byte[] buffer = new byte[4096]; // byte[] This means we are creating an array of bytes.new byte[4096]- This creates a new byte array with 4096 slots.That means the buffer can temporarily hold 4096 bytes (≈ 4 KB) of data at a time. 4096 is common and fine. You might use 8192 (8 KB)
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) { // fis.read(buffer) reads up to buffer.length bytes and returns how many bytes were actually read, or -1 if EOF (end-of-file).
-                    oss.write(buffer, 0, bytesRead); // sends those bytes to the client.  why use buffer-> Sending data in chunks (like 4096 bytes at a time) is efficient and works for large files (no need to load entire file into memory).
+    private void runLoop() {
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            ((Connection) key.attachment()).read(key);
+                        } else if (key.isWritable()) {
+                            ((Connection) key.attachment()).write(key);
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() == null) {
+                            System.err.println("Error accepting connection: " + e.getMessage());
+                        } else {
+                            failures.increment();
+                            System.err.println("Error sending file to client: " + e.getMessage());
+                            ((Connection) key.attachment()).close(key);
+                        }
+                    }
                 }
-                System.out.println("File '" + filename + "' sent to " + clientSocket.getInetAddress()); // Prints success status to the console (VS Code terminal), helpful for debugging.
-            } catch (IOException e) {
-                System.err.println("Error sending file to client: " + e.getMessage());
-            } finally {  // finally block always runs, whether an exception occurred or not. It’s used for cleanup.
-                try { // Closing the socket inside finally prevents resource leaks.
-                    clientSocket.close();  // clientSocket.close() releases network resources and signals EOF to the client. always do this
-                } catch (IOException e) {
-                    System.err.println("Error closing client socket: " + e.getMessage());
+                resumeThrottled();
+                if (System.currentTimeMillis() - lastIdleCheck >= 1000) {
+                    lastIdleCheck = System.currentTimeMillis();
+                    closeIdleConnections();
+                    expirations.advance(lastIdleCheck, this::expire);
                 }
             }
+        } catch (IOException e) {
+            System.err.println("File sharer stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) ((Connection) key.attachment()).close(key);
+            }
+            try {
+                selector.close();
+                serverChannel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing file sharer: " + e.getMessage());
+            }
         }
     }
-}
 
+    private void accept() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, new Connection(client));
+            openConnections.increment();
+        }
+    }
 
+    /** Turns writes back on for connections whose transfer has been granted bandwidth. */
+    private void resumeThrottled() {
+        for (Iterator<SelectionKey> it = throttled.iterator(); it.hasNext(); ) {
+            SelectionKey key = it.next();
+            if (!key.isValid()) {
+                it.remove();
+            } else if (((Connection) key.attachment()).transfer.allowance() > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                it.remove();
+            }
+        }
+    }
 
-// Runnable is a built-in interface in Java.It lives in the package java.lang (so you don’t even need to import it).It has only one method inside it:
-// public interface Runnable {
-//public abstract void run();
-// }
-//So yes — run() is already defined in Runnable (but only as a method signature, no code).
-// public void run();  // run() is where you put the code that should execute when the thread starts. When you create a new Thread and call start(), Java calls the run() method of the Runnable you passed in.
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection != null && now - connection.lastActivity > IDLE_TIMEOUT_MILLIS) {
+                connection.close(key);
+            }
+        }
+    }
+
+    /** Stops the selector thread, which closes the listener and every open connection on its way out. */
+    @Override
+    public void close() {
+        if (ownsTransfers) transfers.close();
+        if (selectorThread == null) return;
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Offer {
+        final int code;
+        final String path;
+        final String name;
+        final String checksum;
+        final PieceManifest manifest;
+        final IntPredicate available; // pieces this peer holds; null when it has the whole file
+
+        Offer(int code, String path, String name, String checksum, PieceManifest manifest, IntPredicate available) {
+            this.code = code;
+            this.path = path;
+            this.name = name;
+            this.checksum = checksum == null ? "" : checksum;
+            this.manifest = manifest;
+            this.available = available;
+        }
+
+        boolean hasPiece(int piece) {
+            return piece >= 0 && piece < manifest.getPieceCount() && (available == null || available.test(piece));
+        }
+    }
+
+    /** State of one peer connection: request, then response header, then body; MANIFEST and PIECE loop back to the request. */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocate(REQUEST_LENGTH + 4).limit(REQUEST_LENGTH);
+        private byte op;
+        private boolean keepAlive;
+        private ByteBuffer header;
+        private FileChannel file;
+        private long position;
+        private long end;
+        private String name;
+        private long requestedAt;
+        private TransferScheduler.Transfer transfer;
+        long lastActivity = System.currentTimeMillis();
 
-// Why we override run()
-// when we write this 
-// private static class FileSenderHandler implements Runnable {
-//     @Override
-//     public void run() {
-//         // your custom code
-//     }
-// }
-// You are saying:
-// “Hey Java, when this class is used as a thread, this is the code (run()) I want it to execute.”
-// Without overriding run(), the thread would have nothing to do.
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
 
-// FileSharer → Keeps track of files available for sharing.
+        void read(SelectionKey key) throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (channel.read(request) < 0) {
+                close(key);
+                return;
+            }
+            if (request.hasRemaining()) return;
+            if (request.limit() == REQUEST_LENGTH && request.get(MAGIC.length + 1) == OP_PIECE) {
+                request.limit(REQUEST_LENGTH + 4); // the piece index follows
+                return;
+            }
 
-// FileSenderHandler → Runs in a thread, actually reads the file from disk and sends it to the client.
+            requestedAt = System.nanoTime();
+            request.flip();
+            byte[] magic = new byte[MAGIC.length];
+            request.get(magic);
+            byte version = request.get();
+            op = request.get();
+            int code = request.getInt();
+            int piece = op == OP_PIECE ? request.getInt() : -1;
+            request.clear().limit(REQUEST_LENGTH);
+            keepAlive = op == OP_MANIFEST || op == OP_PIECE;
+
+            Offer offer = availableFiles.get(code);
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION || op < OP_GET || op > OP_PIECE) {
+                header = status(STATUS_BAD_REQUEST);
+                keepAlive = false;
+            } else if (offer == null || (op == OP_GET && offer.available != null)
+                    || (op == OP_PIECE && !offer.hasPiece(piece))) {
+                header = status(STATUS_NOT_FOUND);
+            } else if (op == OP_MANIFEST) {
+                header = manifestHeader(offer);
+            } else {
+                try {
+                    file = FileChannel.open(Path.of(offer.path), StandardOpenOption.READ);
+                    if (op == OP_GET) {
+                        position = 0;
+                        end = file.size();
+                        header = okHeader(offer, end);
+                    } else {
+                        position = offer.manifest.offset(piece);
+                        end = position + offer.manifest.length(piece);
+                        header = pieceHeader(piece, offer.manifest.length(piece));
+                    }
+                    name = offer.name;
+                    transfer = transfers.open(channel.socket().getInetAddress().getHostAddress(), end - position);
+                    transfer.onGrant(selector::wakeup);
+                } catch (IOException e) {
+                    if (file != null) file.close();
+                    file = null;
+                    header = status(STATUS_NOT_FOUND);
+                }
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
 
-// Runnable with run() → Allows multiple transfers at once (parallelism).
+        void write(SelectionKey key) throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) return;
+            }
+            // transferTo on a non-blocking socket sends what fits and returns; we come back on the next OP_WRITE
+            while (file != null && position < end) {
+                long allowance = transfer.allowance();
+                if (allowance == 0) {
+                    // Out of bandwidth: stop polling for writability until the scheduler grants more
+                    key.interestOps(0);
+                    throttled.add(key);
+                    return;
+                }
+                long sent = file.transferTo(position, Math.min(end - position, allowance), channel);
+                if (sent <= 0) return;
+                transfer.consume(sent);
+                position += sent;
+                sentBytes.add(sent);
+            }
+            if (file != null && op == OP_GET) {
+                sentFiles.increment();
+                transferNanos.recordSince(requestedAt);
+                System.out.println("File '" + name + "' sent to " + channel.getRemoteAddress());
+            } else if (file != null) {
+                sentPieces.increment();
+            }
+            if (keepAlive) {
+                finishRequest(key);
+            } else {
+                close(key);
+            }
+        }
 
-// Real-Life Analogy
+        /** Goes back to waiting for the next request on this connection. */
+        private void finishRequest(SelectionKey key) throws IOException {
+            if (transfer != null) transfer.close();
+            transfer = null;
+            if (file != null) file.close();
+            file = null;
+            header = null;
+            key.interestOps(SelectionKey.OP_READ);
+        }
 
-// Imagine you’re a teacher with lots of notes (files).
+        void close(SelectionKey key) {
+            if (!channel.isOpen()) return;
+            openConnections.decrement();
+            if (transfer != null) transfer.close();
+            key.cancel();
+            try {
+                channel.close();  // releases network resources and signals EOF to the client
+                if (file != null) file.close();
+            } catch (IOException e) {
+                System.err.println("Error closing client socket: " + e.getMessage());
+            }
+        }
 
-// Students (clients) ask you for notes.
+        private ByteBuffer status(byte status) {
+            ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 2);
+            buffer.put(MAGIC).put(VERSION).put(status);
+            return buffer.flip();
+        }
 
-// If you only help one student at a time (no threads), the others wait forever.
+        private ByteBuffer okHeader(Offer offer, long size) {
+            return fileHeader(offer, size, 0).flip();
+        }
 
-// With threads, you can give notes to all students at the same time.
+        private ByteBuffer manifestHeader(Offer offer) {
+            PieceManifest manifest = offer.manifest;
+            byte[] hashes = manifest.getHashes();
+            ByteBuffer buffer = fileHeader(offer, manifest.getSize(), 4 + 4 + hashes.length);
+            buffer.putInt(manifest.getPieceSize()).putInt(manifest.getPieceCount()).put(hashes);
+            return buffer.flip();
+        }
 
+        /** Status OK plus name, size and checksum, with {@code extra} bytes of room left at the end. */
+        private ByteBuffer fileHeader(Offer offer, long size, int extra) {
+            byte[] nameBytes = offer.name.getBytes(StandardCharsets.UTF_8);
+            byte[] checksumBytes = offer.checksum.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 2 + 2 + nameBytes.length + 8 + 2 + checksumBytes.length + extra);
+            buffer.put(MAGIC).put(VERSION).put(STATUS_OK);
+            buffer.putShort((short) nameBytes.length).put(nameBytes);
+            buffer.putLong(size);
+            buffer.putShort((short) checksumBytes.length).put(checksumBytes);
+            return buffer;
+        }
 
+        private ByteBuffer pieceHeader(int piece, int length) {
+            ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 2 + 4 + 4);
+            buffer.put(MAGIC).put(VERSION).put(STATUS_OK).putInt(piece).putInt(length);
+            return buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package p2p.service;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed storage for uploaded files.
+ *
+ * Uploads are streamed to a temporary file through a {@link ContentManifest}
+ * builder, so the SHA-256 and CRC32C of the file and of every piece are ready
+ * as soon as the last byte is written. The file is then moved to
+ * {@code objects/<sha256>} and the manifest to {@code objects/<sha256>.manifest};
+ * if that object already exists the temporary file is dropped instead. Every share id holds a reference on its object and the
+ * object is deleted when the last one is released, together with any derived
+ * variants stored next to it as {@code objects/<sha256>.<suffix>}. Variants
+ * (manifests and compressed copies) are not part of {@link #getStoredBytes()},
+ * so they take disk space outside the quota.
+ *
+ * Files stored before this layout existed (plain {@code UUID_filename} paths)
+ * are still served and count toward {@link #getStoredBytes()}; releasing
+ * one deletes it directly.
+ */
+public class FileStore {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String MANIFEST_SUFFIX = "manifest";
+    private static final long NO_CRC = -1;
+
+    private final Path objectsDir;
+    private final Map<String, Integer> references = new HashMap<>(); // object path -> share count, guarded by this
+    private final Map<String, Long> contentCrcs = new ConcurrentHashMap<>(); // object path -> CRC32C, or NO_CRC without a manifest
+    private final Set<String> variantSuffixes = ConcurrentHashMap.newKeySet(); // every suffix a variant was stored under
+    private long storedBytes;
+    private long dedupedBytes;
+
+    public FileStore(Path root) throws IOException {
+        this.objectsDir = root.resolve("objects");
+        Files.createDirectories(objectsDir);
+        variantSuffixes.add(MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Rebuilds reference counts from the registry and removes objects and
+     * temporary files that no share points to (left behind by a crash between
+     * storing a file and registering its share).
+     */
+    public synchronized void load(FileRegistry registry) throws IOException {
+        registry.forEach(file -> {
+            if (isObject(file.getPath())) {
+                if (references.merge(file.getPath(), 1, Integer::sum) == 1) storedBytes += file.getSize();
+            } else {
+                storedBytes += file.getSize();
+            }
+        });
+
+        int removed = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(objectsDir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                int dot = name.indexOf('.');
+                String object = dot < 0 ? name : name.substring(0, dot);
+                if (!references.containsKey(objectsDir.resolve(object).toString())) {
+                    Files.deleteIfExists(entry);
+                    removed++;
+                } else if (dot >= 0) {
+                    variantSuffixes.add(name.substring(dot + 1));
+                }
+            }
+        }
+        if (removed > 0) {
+            System.out.println("Removed " + removed + " unreferenced objects from " + objectsDir);
+        }
+    }
+
+    /** Creates an empty temporary file next to the objects, to be passed to {@link #commit}. */
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(objectsDir, "incoming-", TEMP_SUFFIX);
+    }
+
+    /**
+     * Streams {@code content} to disk while checksumming it and stores the
+     * result, taking one reference on the object.
+     */
+    public StoredObject write(InputStream content) throws IOException {
+        Path temp = createTempFile();
+        ContentManifest.Builder manifest = new ContentManifest.Builder(PieceManifest.DEFAULT_PIECE_SIZE);
+        try (OutputStream out = new FileOutputStream(temp.toFile())) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = content.read(buffer)) != -1) {
+                manifest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return commit(temp, manifest.build());
+    }
+
+    /**
+     * Moves a fully written file into place under its digest, or discards it
+     * if the same content is already stored, and keeps {@code manifest} next
+     * to it. Either way the caller gets one reference on the object.
+     */
+    public StoredObject commit(Path file, ContentManifest manifest) throws IOException {
+        String hex = manifest.getSha256Hex();
+        Path object = objectsDir.resolve(hex);
+        String key = object.toString();
+        long size = manifest.getSize();
+        Path manifestTemp = createTempFile();
+        try {
+            manifest.write(manifestTemp);
+        } catch (IOException e) {
+            Files.deleteIfExists(manifestTemp);
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        synchronized (this) {
+            Integer count = references.get(key);
+            if (count != null) {
+                Files.deleteIfExists(file);
+                references.put(key, count + 1);
+                dedupedBytes += size;
+            } else {
+                Files.move(file, object, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                references.put(key, 1);
+                storedBytes += size;
+            }
+            // Replaces the manifest of earlier copies too, which may predate manifests or use other piece sizes
+            Files.move(manifestTemp, Path.of(key + "." + MANIFEST_SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            contentCrcs.put(key, manifest.getCrc32c() & 0xFFFFFFFFL);
+        }
+        return new StoredObject(key, hex, size, manifest);
+    }
+
+    /** Drops the share's reference on its file and deletes the file once nothing refers to it. */
+    public void release(SharedFile file) throws IOException {
+        String path = file.getPath();
+        synchronized (this) {
+            if (isObject(path)) {
+                Integer count = references.get(path);
+                if (count == null) return;
+                if (count > 1) {
+                    references.put(path, count - 1);
+                    return;
+                }
+                references.remove(path);
+                contentCrcs.remove(path);
+            }
+            storedBytes -= file.getSize();
+            // Deleted under the lock so a concurrent commit of the same content cannot see the object vanish.
+            // Variants are deleted by name, since listing them would mean scanning every object.
+            Files.deleteIfExists(Path.of(path));
+            if (isObject(path)) {
+                for (String suffix : variantSuffixes) {
+                    Files.deleteIfExists(Path.of(path + "." + suffix));
+                }
+            }
+        }
+    }
+
+    /**
+     * Where a derived form of the share's content (such as a compressed copy)
+     * is kept, or null if the share is not stored by digest.
+     */
+    public Path variantPath(SharedFile file, String suffix) {
+        return isObject(file.getPath()) ? Path.of(file.getPath() + "." + suffix) : null;
+    }
+
+    /**
+     * Moves a fully written temporary file into place as a variant. The file
+     * is discarded if the object was released in the meantime.
+     */
+    public synchronized void commitVariant(SharedFile file, String suffix, Path temp) throws IOException {
+        if (references.containsKey(file.getPath())) {
+            variantSuffixes.add(suffix);
+            Files.move(temp, variantPath(file, suffix), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * The checksums kept with the share's content. Files stored before
+     * manifests were kept are read once to compute it, and objects then keep
+     * the result.
+     */
+    public ContentManifest manifest(SharedFile file) throws IOException {
+        ContentManifest stored = storedManifest(file);
+        if (stored != null) return stored;
+        Path sidecar = variantPath(file, MANIFEST_SUFFIX);
+        ContentManifest manifest = ContentManifest.compute(Path.of(file.getPath()), PieceManifest.DEFAULT_PIECE_SIZE);
+        if (sidecar != null) {
+            Path temp = createTempFile();
+            manifest.write(temp);
+            commitVariant(file, MANIFEST_SUFFIX, temp);
+            contentCrcs.put(file.getPath(), manifest.getCrc32c() & 0xFFFFFFFFL);
+        }
+        return manifest;
+    }
+
+    /** The manifest kept with the share's object, or null if there is none or it cannot be read. */
+    public ContentManifest storedManifest(SharedFile file) {
+        Path sidecar = variantPath(file, MANIFEST_SUFFIX);
+        if (sidecar == null || !Files.exists(sidecar)) return null;
+        try {
+            return ContentManifest.read(sidecar);
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable manifest " + sidecar + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * CRC32C of the share's content from its manifest, or -1 if it has none
+     * yet. Only the first call per object reads the manifest; nothing is
+     * computed here, so this is cheap enough for every download.
+     */
+    public long contentCrc32c(SharedFile file) {
+        if (!isObject(file.getPath())) return NO_CRC;
+        return contentCrcs.computeIfAbsent(file.getPath(), path -> {
+            try {
+                return ContentManifest.read(Path.of(path + "." + MANIFEST_SUFFIX)).getCrc32c() & 0xFFFFFFFFL;
+            } catch (IOException e) {
+                return NO_CRC;
+            }
+        });
+    }
+
+    /** Whether the share points at a content-addressed object, whose bytes never change under its path. */
+    public boolean isStored(SharedFile file) {
+        return isObject(file.getPath());
+    }
+
+    private boolean isObject(String path) {
+        return objectsDir.equals(Path.of(path).getParent());
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /** Bytes on disk across all stored files, counting shared content once. */
+    public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /** Bytes that were uploaded again and not kept because the content was already stored. */
+    public synchronized long getDedupedBytes() {
+        return dedupedBytes;
+    }
+
+    public synchronized int getObjectCount() {
+        return references.size();
+    }
+
+    public static class StoredObject {
+        private final String path;
+        private final String digest;
+        private final long size;
+        private final ContentManifest manifest;
+
+        StoredObject(String path, String digest, long size, ContentManifest manifest) {
+            this.path = path;
+            this.digest = digest;
+            this.size = size;
+            this.manifest = manifest;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /** Hex SHA-256 of the content. */
+        public String getDigest() {
+            return digest;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /** Checksums of the content, computed while it was written. */
+        public ContentManifest getManifest() {
+            return manifest;
+        }
+    }
+}
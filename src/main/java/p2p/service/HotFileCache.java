@@ -0,0 +1,212 @@
+package p2p.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import p2p.utils.FrequencySketch;
+
+/**
+ * Keeps the contents of frequently downloaded files in off-heap memory.
+ *
+ * Only content-addressed files from the {@link FileStore} are cached: they
+ * never change under their path, so an entry can not go stale. Entries for
+ * objects that were deleted simply stop being asked for and age out.
+ *
+ * Admission follows TinyLFU. Every lookup is counted in a
+ * {@link FrequencySketch}; while there is free room any file up to the size
+ * limit is loaded, and once the cache is full a file only gets in if it has
+ * been asked for more often than each least recently used entry it would
+ * push out. A one-off download of a large file therefore cannot flush the
+ * files that keep being requested.
+ *
+ * Hits only read a ConcurrentHashMap. The recency order is updated under a
+ * lock taken with tryLock, so a hit under contention skips the reorder
+ * rather than waiting; misses that load a file hold the lock only to pick
+ * victims, never while reading from disk.
+ */
+public class HotFileCache {
+
+    private final long capacityBytes;
+    private final long maxEntryBytes;
+    private final FrequencySketch sketch;
+    private final Map<String, ByteBuffer> entries = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> loading = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Long> recency = new LinkedHashMap<>(16, 0.75f, true); // path -> size, guarded by lock
+    private volatile long usedBytes; // written under lock; includes space reserved for loads in progress
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder servedBytes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param capacityBytes total size of cached contents; 0 disables the cache
+     * @param maxEntryBytes larger files are always read from disk
+     */
+    public HotFileCache(long capacityBytes, long maxEntryBytes) {
+        this.capacityBytes = capacityBytes;
+        this.maxEntryBytes = Math.min(Math.min(maxEntryBytes, capacityBytes), Integer.MAX_VALUE);
+        // Room to tell apart one file per 64 KB of capacity, and many more than fit when files are larger
+        this.sketch = new FrequencySketch((int) Math.min(Math.max(capacityBytes / (64 * 1024), 1024), 1 << 20));
+    }
+
+    /**
+     * Returns the cached contents of {@code file} as a read-only buffer of its
+     * own, loading them through {@code channel} if the file is admitted, or
+     * null if the file should be read from disk this time.
+     */
+    public ByteBuffer get(SharedFile file, FileChannel channel) throws IOException {
+        if (capacityBytes <= 0) return null;
+        String key = file.getPath();
+        sketch.increment(key);
+
+        ByteBuffer cached = entries.get(key);
+        if (cached != null) {
+            hits.increment();
+            if (lock.tryLock()) {
+                try {
+                    recency.get(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return cached.duplicate();
+        }
+        misses.increment();
+
+        long size = channel.size();
+        if (size == 0 || size > maxEntryBytes) return null;
+        // One thread loads a file; others asking for it meanwhile read from disk
+        if (loading.putIfAbsent(key, Boolean.TRUE) != null) return null;
+        try {
+            if (!reserve(key, size)) return null;
+            ByteBuffer buffer;
+            try {
+                buffer = read(channel, (int) size);
+            } catch (IOException | OutOfMemoryError e) {
+                unreserve(size);
+                throw e;
+            }
+            lock.lock();
+            try {
+                recency.put(key, size);
+                entries.put(key, buffer);
+            } finally {
+                lock.unlock();
+            }
+            return buffer.duplicate();
+        } finally {
+            loading.remove(key);
+        }
+    }
+
+    /** Counts body bytes sent from a buffer returned by {@link #get}. */
+    public void recordServed(long bytes) {
+        servedBytes.add(bytes);
+    }
+
+    /** Makes room for {@code size} bytes if the candidate wins against the entries it would replace. */
+    private boolean reserve(String key, long size) {
+        lock.lock();
+        try {
+            if (usedBytes + size <= capacityBytes) {
+                usedBytes += size;
+                return true;
+            }
+            int candidateFrequency = sketch.frequency(key);
+            List<String> victims = new ArrayList<>();
+            long freed = 0;
+            Iterator<Map.Entry<String, Long>> lru = recency.entrySet().iterator();
+            while (usedBytes - freed + size > capacityBytes) {
+                if (!lru.hasNext()) {
+                    // The rest of the space is reserved by loads still in progress
+                    rejections.increment();
+                    return false;
+                }
+                Map.Entry<String, Long> victim = lru.next();
+                if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                    rejections.increment();
+                    return false;
+                }
+                victims.add(victim.getKey());
+                freed += victim.getValue();
+            }
+            for (String victim : victims) {
+                recency.remove(victim);
+                entries.remove(victim);
+                evictions.increment();
+            }
+            usedBytes += size - freed;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unreserve(long size) {
+        lock.lock();
+        try {
+            usedBytes -= size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new EOFException("File shrank while being cached");
+            }
+        }
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Share of lookups answered from memory so far, 0 to 1. */
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public long getServedBytes() {
+        return servedBytes.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** Files that were not admitted because the entries they would replace were more popular. */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+}
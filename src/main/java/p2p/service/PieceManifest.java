@@ -0,0 +1,71 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A file split into fixed-size pieces with the SHA-256 of each, so a
+ * downloader can take pieces from any peer and check every one on arrival.
+ * The last piece may be shorter.
+ */
+public final class PieceManifest {
+
+    public static final int DEFAULT_PIECE_SIZE = 1024 * 1024;
+    static final int HASH_LENGTH = 32;
+
+    private final long size;
+    private final int pieceSize;
+    private final byte[] hashes; // HASH_LENGTH bytes per piece, in order
+
+    public PieceManifest(long size, int pieceSize, byte[] hashes) {
+        if (size < 0 || pieceSize <= 0) throw new IllegalArgumentException("Invalid size or piece size");
+        long pieces = (size + pieceSize - 1) / pieceSize;
+        if (hashes.length != pieces * HASH_LENGTH) {
+            throw new IllegalArgumentException("Expected " + pieces + " piece hashes");
+        }
+        this.size = size;
+        this.pieceSize = pieceSize;
+        this.hashes = hashes;
+    }
+
+    /** Hashes {@code path} piece by piece. */
+    public static PieceManifest compute(Path path, int pieceSize) throws IOException {
+        return ContentManifest.compute(path, pieceSize).getPieces();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    public int getPieceCount() {
+        return hashes.length / HASH_LENGTH;
+    }
+
+    public long offset(int piece) {
+        return (long) piece * pieceSize;
+    }
+
+    public int length(int piece) {
+        return (int) Math.min(pieceSize, size - offset(piece));
+    }
+
+    /** Whether the remaining bytes of {@code data} are exactly piece {@code piece}. */
+    public boolean verify(int piece, ByteBuffer data) {
+        if (data.remaining() != length(piece)) return false;
+        MessageDigest digest = FileStore.newDigest();
+        digest.update(data.duplicate());
+        int from = piece * HASH_LENGTH;
+        return Arrays.equals(digest.digest(), 0, HASH_LENGTH, hashes, from, from + HASH_LENGTH);
+    }
+
+    byte[] getHashes() {
+        return hashes;
+    }
+}
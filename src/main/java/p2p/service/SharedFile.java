@@ -0,0 +1,79 @@
+package p2p.service;
+
+import java.io.File;
+
+/**
+ * Metadata for one share id, as kept by {@link FileRegistry}.
+ */
+public class SharedFile {
+    private final String id;
+    private final String path;
+    private final String filename;
+    private final long size;
+    private final String contentType;
+    private final String checksum;
+    private final long createdAt;
+    private final long expiresAt;
+    private final int maxDownloads;
+
+    public SharedFile(String id, String path, long size, String contentType, String checksum, long createdAt) {
+        this(id, path, null, size, contentType, checksum, createdAt, 0, 0);
+    }
+
+    public SharedFile(String id, String path, String filename, long size, String contentType, String checksum,
+                      long createdAt, long expiresAt, int maxDownloads) {
+        this.id = id;
+        this.path = path;
+        this.filename = filename == null || filename.isEmpty() ? new File(path).getName() : filename;
+        this.size = size;
+        this.contentType = contentType == null ? "application/octet-stream" : contentType;
+        this.checksum = checksum == null ? "" : checksum;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+        this.maxDownloads = maxDownloads;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /** Name the file is offered under; defaults to the name of the stored file. */
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /** Hex digest of the content, or an empty string if none was computed. */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /** Epoch millis after which the share is gone, or 0 if it never expires. */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /** Number of downloads allowed before the share is removed, or 0 for no limit. */
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt > 0 && expiresAt <= now;
+    }
+}
@@ -0,0 +1,218 @@
+package p2p.service;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Downloads one share from several peers at once.
+ *
+ * The piece manifest comes from the first peer that has the share. Then
+ * one worker per peer keeps a connection open and takes pieces from a
+ * shared queue, so faster peers simply end up sending more of them. Every
+ * piece is checked against its SHA-256 before it is written; a piece that
+ * fails goes back on the queue, and a peer that sends three bad pieces is
+ * dropped. Pieces start in random order, so downloaders running at the same
+ * time hold different pieces and can feed each other.
+ *
+ * With {@link #reseedVia} the pieces received so far are served to other
+ * peers under the same share code while the download is still running.
+ */
+public class SwarmDownloader {
+
+    private static final int MAX_BAD_PIECES = 3;
+    private static final long PEER_STALL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long RETRY_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final List<InetSocketAddress> peers;
+    private final int code;
+    private FileSharer reseed;
+
+    public SwarmDownloader(List<InetSocketAddress> peers, int code) {
+        if (peers.isEmpty()) throw new IllegalArgumentException("No peers to download from");
+        this.peers = List.copyOf(peers);
+        this.code = code;
+    }
+
+    /** Offers the pieces of this download through {@code sharer} as they arrive. */
+    public SwarmDownloader reseedVia(FileSharer sharer) {
+        this.reseed = sharer;
+        return this;
+    }
+
+    /**
+     * Downloads the share into {@code directory} and returns its path. A
+     * partially received file is deleted.
+     */
+    public Path download(Path directory) throws IOException {
+        Manifest manifest = fetchManifest();
+        PieceManifest pieces = manifest.pieces;
+        Path target = directory.resolve(manifest.name.isEmpty() ? "unnamed-file" : manifest.name);
+
+        int count = pieces.getPieceCount();
+        List<Integer> order = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) order.add(i);
+        Collections.shuffle(order);
+        Download download = new Download(pieces, new ConcurrentLinkedQueue<>(order));
+
+        boolean complete = false;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (reseed != null) {
+                reseed.offerPieces(code, target, manifest.name, manifest.checksum, pieces, i -> download.have.get(i) == 1);
+            }
+            List<Thread> workers = new ArrayList<>();
+            for (InetSocketAddress peer : peers) {
+                Thread worker = new Thread(() -> download.fetchFrom(peer, out), "peerlink-swarm-" + peer.getPort());
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            complete = download.completed.get() == count;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading", e);
+        } finally {
+            if (!complete) {
+                if (reseed != null) reseed.withdraw(code);
+                Files.deleteIfExists(target);
+            }
+        }
+        if (!complete) {
+            throw new IOException("Only " + download.completed.get() + " of " + count + " pieces could be downloaded");
+        }
+        return target;
+    }
+
+    private Manifest fetchManifest() throws IOException {
+        IOException failure = null;
+        for (InetSocketAddress peer : peers) {
+            try (SocketChannel channel = SocketChannel.open(peer)) {
+                FileReceiver.sendRequest(channel, FileSharer.OP_MANIFEST, code, -1);
+                byte status = FileReceiver.readStatus(channel);
+                if (status != FileSharer.STATUS_OK) {
+                    failure = new IOException(peer + " does not have share " + code + " (status " + status + ")");
+                    continue;
+                }
+                String name = new File(FileReceiver.readString(channel, StandardCharsets.UTF_8)).getName();
+                long size = FileReceiver.readFully(channel, 8).getLong();
+                String checksum = FileReceiver.readString(channel, StandardCharsets.US_ASCII);
+                ByteBuffer layout = FileReceiver.readFully(channel, 8);
+                int pieceSize = layout.getInt();
+                int count = layout.getInt();
+                byte[] hashes = FileReceiver.readFully(channel, count * PieceManifest.HASH_LENGTH).array();
+                return new Manifest(name, checksum, new PieceManifest(size, pieceSize, hashes));
+            } catch (IOException | IllegalArgumentException e) {
+                failure = new IOException("Could not get the manifest from " + peer + ": " + e.getMessage(), e);
+            }
+        }
+        throw failure;
+    }
+
+    private static final class Manifest {
+        final String name;
+        final String checksum;
+        final PieceManifest pieces;
+
+        Manifest(String name, String checksum, PieceManifest pieces) {
+            this.name = name;
+            this.checksum = checksum;
+            this.pieces = pieces;
+        }
+    }
+
+    /** Progress shared by the workers of one download. */
+    private final class Download {
+        final PieceManifest pieces;
+        final Queue<Integer> pending;
+        final AtomicIntegerArray have;
+        final AtomicInteger completed = new AtomicInteger();
+
+        Download(PieceManifest pieces, Queue<Integer> pending) {
+            this.pieces = pieces;
+            this.pending = pending;
+            this.have = new AtomicIntegerArray(pieces.getPieceCount());
+        }
+
+        void fetchFrom(InetSocketAddress peer, FileChannel out) {
+            int count = pieces.getPieceCount();
+            try (SocketChannel channel = SocketChannel.open(peer)) {
+                ByteBuffer buffer = ByteBuffer.allocate(pieces.getPieceSize());
+                int badPieces = 0;
+                long lastProgress = System.nanoTime();
+                while (completed.get() < count) {
+                    Integer piece = pending.poll();
+                    if (piece == null) {
+                        // The rest is in flight on other connections; wait in case one of them fails
+                        LockSupport.parkNanos(RETRY_PAUSE_NANOS);
+                        continue;
+                    }
+                    boolean done = false;
+                    try {
+                        if (!requestPiece(channel, piece, buffer)) {
+                            // This peer does not have the piece (yet); leave it to the others for a while
+                            if (System.nanoTime() - lastProgress > PEER_STALL_NANOS) return;
+                            LockSupport.parkNanos(RETRY_PAUSE_NANOS);
+                        } else if (!pieces.verify(piece, buffer)) {
+                            System.err.println("Bad piece " + piece + " from " + peer);
+                            if (++badPieces >= MAX_BAD_PIECES) return;
+                        } else {
+                            long offset = pieces.offset(piece);
+                            while (buffer.hasRemaining()) {
+                                offset += out.write(buffer, offset);
+                            }
+                            have.set(piece, 1);
+                            completed.incrementAndGet();
+                            lastProgress = System.nanoTime();
+                            done = true;
+                        }
+                    } finally {
+                        if (!done) pending.add(piece);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Stopped downloading from " + peer + ": " + e.getMessage());
+            }
+        }
+
+        /** Fetches one piece into {@code buffer}; false if the peer does not have it. */
+        private boolean requestPiece(SocketChannel channel, int piece, ByteBuffer buffer) throws IOException {
+            FileReceiver.sendRequest(channel, FileSharer.OP_PIECE, code, piece);
+            byte status = FileReceiver.readStatus(channel);
+            if (status == FileSharer.STATUS_NOT_FOUND) return false;
+            if (status != FileSharer.STATUS_OK) throw new IOException("Peer rejected the request (status " + status + ")");
+            ByteBuffer header = FileReceiver.readFully(channel, 8);
+            int index = header.getInt();
+            int length = header.getInt();
+            if (index != piece || length != pieces.length(piece)) {
+                throw new IOException("Peer answered with piece " + index + " of " + length + " bytes");
+            }
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new EOFException("Connection closed by peer");
+            }
+            buffer.flip();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package p2p.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import p2p.config.TransferConfig;
+
+/**
+ * Shares the configured upload bandwidth fairly between running transfers.
+ *
+ * One dispatcher thread owns all scheduling state: a token bucket for the
+ * global limit, one per client address, and the list of open transfers.
+ * Every few milliseconds it refills the buckets and hands the new tokens
+ * out by deficit round robin: each round, every transfer that can use more
+ * gets its quantum, small transfers four times as much, until the tokens
+ * run out, and the next tick continues with the transfer after the last one
+ * served. A single 10 GB download therefore gets the same share as each of
+ * the small ones next to it, and those finish first.
+ *
+ * Tokens reach a transfer as credit in an AtomicLong. Senders only read and
+ * subtract from their own credit, so the per-chunk write path takes no lock;
+ * a sender that runs out parks until the dispatcher grants more. Blocking
+ * senders may overdraw by one write, which keeps writes at full chunk size;
+ * the debt is repaid from later grants.
+ *
+ * With no limits configured there is no dispatcher and every call returns
+ * immediately.
+ */
+public class TransferScheduler implements AutoCloseable {
+
+    /** Bytes a transfer is granted per round; small transfers get {@link #SMALL_WEIGHT} times this. */
+    static final int QUANTUM = 16 * 1024;
+    static final int SMALL_WEIGHT = 4;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final TransferConfig config;
+    private final Queue<Transfer> arrivals = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder waits = new LongAdder();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    // Owned by the dispatcher thread
+    private final List<Transfer> transfers = new ArrayList<>();
+    private final Map<String, Bucket> clients = new HashMap<>();
+    private final Bucket global;
+    private final long creditCap; // unspent credit one transfer may hold
+    private int cursor;
+
+    public TransferScheduler(TransferConfig config) {
+        this.config = config;
+        this.global = new Bucket(config.getGlobalBytesPerSecond());
+        long rate = config.getGlobalBytesPerSecond() > 0 ? config.getGlobalBytesPerSecond() : config.getClientBytesPerSecond();
+        this.creditCap = Math.max((long) QUANTUM * SMALL_WEIGHT, rate * TICK_NANOS / 1_000_000_000L);
+        if (config.isShaping()) {
+            dispatcher = new Thread(this::dispatch, "peerlink-transfer-scheduler");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        } else {
+            dispatcher = null;
+        }
+    }
+
+    /**
+     * Registers a transfer of {@code size} bytes (-1 if unknown) to
+     * {@code client}. It must be closed when done.
+     */
+    public Transfer open(String client, long size) {
+        boolean small = size >= 0 && size <= config.getSmallTransferBytes();
+        Transfer transfer = new Transfer(client, small ? SMALL_WEIGHT : 1);
+        if (dispatcher != null) {
+            active.incrementAndGet();
+            arrivals.add(transfer);
+            LockSupport.unpark(dispatcher);
+        }
+        return transfer;
+    }
+
+    public boolean isShaping() {
+        return dispatcher != null;
+    }
+
+    public int getActiveTransfers() {
+        return active.get();
+    }
+
+    /** How many times a sender had to wait for bandwidth. */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (dispatcher == null) return;
+        LockSupport.unpark(dispatcher);
+        try {
+            dispatcher.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch() {
+        while (running) {
+            Transfer arrival;
+            while ((arrival = arrivals.poll()) != null) {
+                arrival.bucket = clients.computeIfAbsent(arrival.client, c -> new Bucket(config.getClientBytesPerSecond()));
+                arrival.bucket.transfers++;
+                transfers.add(arrival);
+            }
+            long now = System.nanoTime();
+            global.refill(now);
+            for (Bucket bucket : clients.values()) {
+                bucket.refill(now);
+            }
+            grant();
+            removeClosed();
+            if (transfers.isEmpty()) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, TICK_NANOS);
+            }
+        }
+    }
+
+    /** Deficit round robin over the open transfers until the tokens or the takers run out. */
+    private void grant() {
+        int count = transfers.size();
+        boolean progress = true;
+        while (progress && global.tokens >= 1) {
+            progress = false;
+            for (int i = 0; i < count; i++) {
+                Transfer transfer = transfers.get((cursor + i) % count);
+                long room = creditCap - transfer.credit.get();
+                if (transfer.closed || room <= 0) {
+                    transfer.deficit = 0; // not backlogged, so nothing carries over
+                    continue;
+                }
+                if (transfer.bucket.tokens < 1) continue; // held back by its client's limit
+                transfer.deficit += (long) QUANTUM * transfer.weight;
+                long amount = (long) Math.min(Math.min(transfer.deficit, room),
+                        Math.min(global.tokens, transfer.bucket.tokens));
+                if (amount <= 0) continue;
+                transfer.deficit -= amount;
+                global.take(amount);
+                transfer.bucket.take(amount);
+                transfer.grant(amount);
+                progress = true;
+                if (global.tokens < 1) {
+                    cursor = (cursor + i + 1) % count;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void removeClosed() {
+        for (Iterator<Transfer> it = transfers.iterator(); it.hasNext(); ) {
+            Transfer transfer = it.next();
+            if (!transfer.closed) continue;
+            it.remove();
+            if (--transfer.bucket.transfers == 0) clients.remove(transfer.client);
+        }
+        if (cursor >= transfers.size()) cursor = 0;
+    }
+
+    /** One stream of outgoing bytes. Used by a single sending thread at a time. */
+    public final class Transfer implements AutoCloseable {
+        private final String client;
+        private final int weight;
+        private final AtomicLong credit = new AtomicLong();
+        private volatile boolean waiting;
+        private volatile Thread waiter;
+        private volatile Runnable onGrant;
+        private volatile boolean closed;
+        long deficit;  // dispatcher only
+        Bucket bucket; // dispatcher only
+
+        private Transfer(String client, int weight) {
+            this.client = client;
+            this.weight = weight;
+        }
+
+        /**
+         * Bytes that may be sent right now. 0 means none; the dispatcher
+         * then runs the {@link #onGrant} callback once more is available.
+         */
+        public long allowance() {
+            if (dispatcher == null) return Long.MAX_VALUE;
+            long available = credit.get();
+            if (available > 0) return available;
+            waiting = true;
+            return Math.max(0, credit.get()); // a grant may have landed in between
+        }
+
+        /** Records bytes actually sent. */
+        public void consume(long bytes) {
+            if (dispatcher != null) credit.addAndGet(-bytes);
+        }
+
+        /** Blocks until some bytes may be sent. */
+        public void await() throws InterruptedIOException {
+            if (dispatcher == null) return;
+            while (allowance() == 0) {
+                waiter = Thread.currentThread();
+                if (credit.get() > 0) break;
+                waits.increment();
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                if (Thread.interrupted()) throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+            waiter = null;
+        }
+
+        /** Called on the dispatcher thread after credit arrives for a sender that ran out, e.g. to wake a selector. */
+        public void onGrant(Runnable callback) {
+            this.onGrant = callback;
+        }
+
+        /** Wraps a stream so every write first waits for bandwidth; closing it closes the transfer. */
+        public OutputStream shape(OutputStream out) {
+            return new ShapedOutputStream(out, this);
+        }
+
+        private void grant(long amount) {
+            credit.addAndGet(amount);
+            if (!waiting) return;
+            waiting = false;
+            Thread thread = waiter;
+            if (thread != null) LockSupport.unpark(thread);
+            Runnable callback = onGrant;
+            if (callback != null) callback.run();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (dispatcher != null) active.decrementAndGet();
+        }
+    }
+
+    private static final class ShapedOutputStream extends FilterOutputStream {
+        private final Transfer transfer;
+
+        ShapedOutputStream(OutputStream out, Transfer transfer) {
+            super(out);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            transfer.await();
+            out.write(b);
+            transfer.consume(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            transfer.await();
+            out.write(b, off, len);
+            transfer.consume(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                transfer.close();
+            }
+        }
+    }
+
+    /** Token bucket; only touched by the dispatcher. A rate of 0 means unlimited. */
+    private static final class Bucket {
+        private final double bytesPerNano;
+        private final double burst;
+        private long refilledAt = System.nanoTime();
+        double tokens;
+        int transfers;
+
+        Bucket(long bytesPerSecond) {
+            this.bytesPerNano = bytesPerSecond / 1e9;
+            this.burst = Math.max(bytesPerSecond / 20.0, QUANTUM); // 50 ms worth
+            this.tokens = bytesPerSecond > 0 ? burst : Double.POSITIVE_INFINITY;
+        }
+
+        void refill(long now) {
+            if (bytesPerNano > 0) tokens = Math.min(burst, tokens + (now - refilledAt) * bytesPerNano);
+            refilledAt = now;
+        }
+
+        void take(long amount) {
+            tokens -= amount;
+        }
+    }
+}
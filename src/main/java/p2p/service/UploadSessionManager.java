@@ -0,0 +1,540 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+import p2p.config.StorageConfig;
+
+/**
+ * Keeps track of resumable uploads that arrive as numbered chunks.
+ *
+ * Each session owns a file preallocated to the final size in the upload
+ * directory. Chunks may arrive concurrently and in any order; every chunk is
+ * written straight to its offset, so completing a session is just a rename
+ * into the {@link FileStore}.
+ *
+ * Each chunk's CRC32C and SHA-256 are computed as it streams in and become
+ * the pieces of the share's {@link ContentManifest}. A client that sends the
+ * chunk's own checksum gets the chunk rejected when it does not match, so a
+ * corrupted chunk is never counted as received.
+ *
+ * The whole-file hash is computed while chunks arrive: whenever the run of
+ * received chunks from the start grows, the new chunks are hashed while they
+ * are still in the page cache. Completing a session only hashes whatever
+ * arrived out of order and has not been covered yet.
+ *
+ * Preallocated files count against the disk quota from the moment a session
+ * starts: a session that would not fit next to the stored files and the other
+ * open sessions is refused. Sessions that receive no chunk for the configured
+ * idle time are dropped by {@link #reapIdle}, which the {@link EvictionManager}
+ * calls on every sweep. Sessions are not kept across restarts; the files of
+ * earlier ones are deleted by {@link #removeAbandoned} at startup.
+ */
+public class UploadSessionManager {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNKS = 1 << 20;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final String PART_SUFFIX = ".part";
+
+    private final String uploadDir;
+    private final FileStore fileStore;
+    private final StorageConfig config;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final Object reservationLock = new Object();
+    private long reservedBytes; // guarded by reservationLock
+
+    public UploadSessionManager(String uploadDir, FileStore fileStore, StorageConfig config) {
+        this.uploadDir = uploadDir;
+        this.fileStore = fileStore;
+        this.config = config;
+    }
+
+    /**
+     * Deletes the files of sessions left by an earlier run. Sessions are kept
+     * in memory only, so those can never be completed, and they would
+     * otherwise sit in the upload directory outside the quota.
+     */
+    public void removeAbandoned() throws IOException {
+        int removed = 0;
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(Path.of(uploadDir), "*" + PART_SUFFIX)) {
+            for (Path part : parts) {
+                if (Files.deleteIfExists(part)) removed++;
+            }
+        }
+        if (removed > 0) {
+            System.out.println("Removed " + removed + " unfinished upload sessions from " + uploadDir);
+        }
+    }
+
+    public UploadSession create(String filename, String contentType, long size, int chunkSize,
+                                long expiresAt, int maxDownloads) throws IOException {
+        if (size < 0) throw new IllegalArgumentException("File size must not be negative");
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE);
+        }
+        if (size > config.getMaxSessionBytes()) {
+            throw new IllegalArgumentException("File size must be at most " + config.getMaxSessionBytes() + " bytes");
+        }
+        long chunkCount = Math.max(1, (size + chunkSize - 1) / chunkSize);
+        if (chunkCount > MAX_CHUNKS) throw new IllegalArgumentException("Too many chunks: " + chunkCount);
+
+        reserve(size);
+        String sessionId = UUID.randomUUID().toString();
+        Path partFile = Path.of(uploadDir, sessionId + PART_SUFFIX);
+        FileChannel channel = null;
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(partFile.toFile(), "rw")) {
+                raf.setLength(size);
+            }
+            channel = FileChannel.open(partFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            release(size);
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+
+        String name = filename == null || filename.isEmpty() ? "unnamed-file" : new File(filename).getName();
+        UploadSession session = new UploadSession(sessionId, name, contentType, size, chunkSize, (int) chunkCount,
+                partFile, channel, expiresAt, maxDownloads);
+        sessions.put(sessionId, session);
+        return session;
+    }
+
+    /**
+     * Counts {@code size} bytes against the quota, or throws if they would
+     * not fit. Sessions reserve their file size; plain uploads reserve their
+     * request length while they are written, and {@link #release} it after.
+     */
+    public void reserve(long size) throws InsufficientStorageException {
+        long quota = config.getDiskQuotaBytes();
+        synchronized (reservationLock) {
+            if (quota > 0 && fileStore.getStoredBytes() + reservedBytes + size > quota) {
+                throw new InsufficientStorageException("Not enough space for " + size + " bytes within the disk quota");
+            }
+            reservedBytes += size;
+        }
+    }
+
+    public void release(long size) {
+        synchronized (reservationLock) {
+            reservedBytes -= size;
+        }
+    }
+
+    /** Bytes set aside for uploads in progress: preallocated sessions and plain uploads being written. */
+    public long getReservedBytes() {
+        synchronized (reservationLock) {
+            return reservedBytes;
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public UploadSession get(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    /**
+     * Hands a fully received session to the file store and returns the stored
+     * object, holding one reference for the caller.
+     */
+    public FileStore.StoredObject complete(String sessionId) throws IOException {
+        UploadSession session = sessions.get(sessionId);
+        if (session == null) return null;
+
+        // Waits for chunk writes in flight, and turns away any that come after
+        ContentManifest manifest;
+        session.closeLock.writeLock().lock();
+        try {
+            if (session.closed) return null;
+            if (!session.isComplete()) {
+                throw new IllegalStateException("Missing " + (session.chunkCount - session.receivedCount()) + " chunks");
+            }
+            session.closed = true;
+            sessions.remove(sessionId, session);
+            release(session.size); // from here on the file is the store's to count
+            try {
+                try {
+                    manifest = session.finishManifest();
+                } finally {
+                    session.channel.close();
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(session.partFile);
+                throw e;
+            }
+        } finally {
+            session.closeLock.writeLock().unlock();
+        }
+
+        try {
+            return fileStore.commit(session.partFile, manifest);
+        } catch (IOException e) {
+            Files.deleteIfExists(session.partFile);
+            throw e;
+        }
+    }
+
+    public boolean abort(String sessionId) throws IOException {
+        UploadSession session = sessions.get(sessionId);
+        if (session == null) return false;
+        session.closeLock.writeLock().lock();
+        try {
+            return discard(session);
+        } finally {
+            session.closeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops sessions that have received nothing for the idle timeout,
+     * deleting their files. Sessions with a chunk being written are skipped.
+     *
+     * @return the number of sessions dropped
+     */
+    public int reapIdle(long now) {
+        long idleBefore = now - config.getSessionIdleMillis();
+        int reaped = 0;
+        for (UploadSession session : sessions.values()) {
+            if (session.lastActivity > idleBefore || !session.closeLock.writeLock().tryLock()) continue;
+            try {
+                if (session.lastActivity <= idleBefore && discard(session)) reaped++;
+            } catch (IOException e) {
+                System.err.println("Error deleting idle upload session " + session.id + ": " + e.getMessage());
+            } finally {
+                session.closeLock.writeLock().unlock();
+            }
+        }
+        return reaped;
+    }
+
+    /** Closes the session and deletes its file; call holding its write lock. */
+    private boolean discard(UploadSession session) throws IOException {
+        if (session.closed) return false;
+        session.closed = true;
+        sessions.remove(session.id, session);
+        release(session.size);
+        try {
+            session.channel.close();
+        } finally {
+            Files.deleteIfExists(session.partFile);
+        }
+        return true;
+    }
+
+    /** The disk quota has no room for a new session. */
+    public static class InsufficientStorageException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public InsufficientStorageException(String message) {
+            super(message);
+        }
+    }
+
+    public static class UploadSession {
+        private final String id;
+        private final String filename;
+        private final String contentType;
+        private final long size;
+        private final int chunkSize;
+        private final int chunkCount;
+        private final Path partFile;
+        private final FileChannel channel;
+        private final AtomicLongArray received;
+        private final AtomicInteger receivedCount = new AtomicInteger();
+        private volatile long lastActivity = System.currentTimeMillis();
+        // Chunk writes share it; completing or dropping the session takes it exclusively
+        private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+        private boolean closed; // guarded by closeLock
+        private final ReentrantLock hashLock = new ReentrantLock();
+        private final MessageDigest digest = FileStore.newDigest(); // guarded by hashLock
+        private final CRC32C crc = new CRC32C();                    // guarded by hashLock
+        private final CRC32 zipCrc = new CRC32();                   // guarded by hashLock
+        private volatile int hashedChunks;                          // written under hashLock
+        private final long expiresAt;
+        private final int maxDownloads;
+        private final int[] chunkCrcs;     // written before the chunk is marked received
+        private final byte[] chunkHashes;  // PieceManifest.HASH_LENGTH bytes per chunk, likewise
+
+        private UploadSession(String id, String filename, String contentType, long size, int chunkSize,
+                              int chunkCount, Path partFile, FileChannel channel, long expiresAt, int maxDownloads) {
+            this.id = id;
+            this.filename = filename;
+            this.contentType = contentType == null || contentType.isEmpty() ? "application/octet-stream" : contentType;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.partFile = partFile;
+            this.channel = channel;
+            this.received = new AtomicLongArray((chunkCount + 63) / 64);
+            this.expiresAt = expiresAt;
+            this.maxDownloads = maxDownloads;
+            this.chunkCrcs = new int[chunkCount];
+            this.chunkHashes = new byte[chunkCount * PieceManifest.HASH_LENGTH];
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        /** Expiry the finished share will get, or 0 for none. */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public int getMaxDownloads() {
+            return maxDownloads;
+        }
+
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        public long chunkLength(int index) {
+            long offset = (long) index * chunkSize;
+            return Math.min(chunkSize, size - offset);
+        }
+
+        public void writeChunk(int index, InputStream body) throws IOException {
+            writeChunk(index, body, null, null);
+        }
+
+        /**
+         * Writes one chunk at its offset. Positional writes do not touch the
+         * channel position, so different chunks can be written concurrently.
+         * Re-sending a chunk simply overwrites it; if the resend fails partway
+         * (wrong length, a read or write error), the chunk counts as missing.
+         *
+         * When {@code expectedCrc32c} (4 bytes, big-endian) or
+         * {@code expectedSha256} is given and the received bytes do not match
+         * it, the chunk is rejected with an IllegalArgumentException and
+         * counts as missing, even if an earlier copy had arrived intact.
+         */
+        public void writeChunk(int index, InputStream body, byte[] expectedCrc32c, byte[] expectedSha256)
+                throws IOException {
+            if (index < 0 || index >= chunkCount) throw new IllegalArgumentException("Chunk index out of range: " + index);
+            closeLock.readLock().lock();
+            try {
+                if (closed) throw new IllegalStateException("Upload session " + id + " is closed");
+                lastActivity = System.currentTimeMillis();
+                receiveChunk(index, body, expectedCrc32c, expectedSha256);
+            } finally {
+                closeLock.readLock().unlock();
+            }
+        }
+
+        private void receiveChunk(int index, InputStream body, byte[] expectedCrc32c, byte[] expectedSha256)
+                throws IOException {
+            long offset = (long) index * chunkSize;
+            long length = chunkLength(index);
+
+            CRC32C chunkCrc = new CRC32C();
+            MessageDigest chunkDigest = FileStore.newDigest();
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, length))];
+            long written = 0;
+            boolean overwritten = false;
+            try {
+                while (written < length) {
+                    int n = body.read(buffer, 0, (int) Math.min(buffer.length, length - written));
+                    if (n < 0) break;
+                    chunkCrc.update(buffer, 0, n);
+                    chunkDigest.update(buffer, 0, n);
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+                    overwritten = true;
+                    while (data.hasRemaining()) {
+                        channel.write(data, offset + written + data.position());
+                    }
+                    written += n;
+                }
+                if (written != length || body.read() != -1) {
+                    throw new IllegalArgumentException("Chunk " + index + " must be exactly " + length + " bytes");
+                }
+            } catch (IOException | RuntimeException e) {
+                // Whatever copy of the chunk was on disk is partly overwritten now
+                if (overwritten) rewind(index, true);
+                throw e;
+            }
+            int crcValue = (int) chunkCrc.getValue();
+            byte[] sha256 = chunkDigest.digest();
+            boolean intact = (expectedCrc32c == null || Arrays.equals(expectedCrc32c, intBytes(crcValue)))
+                    && (expectedSha256 == null || MessageDigest.isEqual(expectedSha256, sha256));
+
+            if (!intact || hasChunk(index)) rewind(index, !intact);
+            if (!intact) {
+                throw new IllegalArgumentException("Chunk " + index + " does not match its checksum");
+            }
+            chunkCrcs[index] = crcValue;
+            System.arraycopy(sha256, 0, chunkHashes, index * PieceManifest.HASH_LENGTH, PieceManifest.HASH_LENGTH);
+            markReceived(index);
+            lastActivity = System.currentTimeMillis();
+
+            // Whoever holds the lock hashes every contiguous chunk it finds, so nobody has to wait here
+            if (nextToHashReceived() && hashLock.tryLock()) {
+                try {
+                    hashReceivedPrefix();
+                } finally {
+                    hashLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * The chunk's bytes changed under a possibly hashed prefix: starts the
+         * digest over, and with {@code unmark} counts the chunk as missing.
+         * lock() waits for a hash pass that might be reading this chunk right
+         * now, and an unmarked chunk is unmarked before any later pass can
+         * pick it up again.
+         */
+        private void rewind(int index, boolean unmark) {
+            hashLock.lock();
+            try {
+                if (unmark) unmarkReceived(index);
+                if (index < hashedChunks) {
+                    digest.reset();
+                    crc.reset();
+                    zipCrc.reset();
+                    hashedChunks = 0;
+                }
+            } finally {
+                hashLock.unlock();
+            }
+        }
+
+        /** Feeds the digest every received chunk that directly follows the hashed prefix. */
+        private void hashReceivedPrefix() throws IOException {
+            ByteBuffer buffer = null;
+            while (nextToHashReceived()) {
+                if (buffer == null) buffer = ByteBuffer.allocate(Math.min(chunkSize, 256 * 1024));
+                long position = (long) hashedChunks * chunkSize;
+                long end = position + chunkLength(hashedChunks);
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                    int n = channel.read(buffer, position);
+                    if (n < 0) throw new IOException("Upload file is shorter than expected");
+                    digest.update(buffer.array(), 0, n);
+                    crc.update(buffer.array(), 0, n);
+                    zipCrc.update(buffer.array(), 0, n);
+                    position += n;
+                }
+                hashedChunks++;
+            }
+        }
+
+        private boolean nextToHashReceived() {
+            int next = hashedChunks;
+            return next < chunkCount && hasChunk(next);
+        }
+
+        private ContentManifest finishManifest() throws IOException {
+            hashLock.lock();
+            try {
+                hashReceivedPrefix();
+                // An empty file still arrives as one empty chunk, but has no pieces
+                int pieces = size == 0 ? 0 : chunkCount;
+                PieceManifest pieceManifest = new PieceManifest(size, chunkSize,
+                        Arrays.copyOf(chunkHashes, pieces * PieceManifest.HASH_LENGTH));
+                return new ContentManifest(pieceManifest, (int) crc.getValue(), (int) zipCrc.getValue(), digest.digest(),
+                        Arrays.copyOf(chunkCrcs, pieces));
+            } finally {
+                hashLock.unlock();
+            }
+        }
+
+        private static byte[] intBytes(int value) {
+            return ByteBuffer.allocate(4).putInt(value).array();
+        }
+
+        private void markReceived(int index) {
+            int word = index >>> 6;
+            long bit = 1L << (index & 63);
+            while (true) {
+                long current = received.get(word);
+                if ((current & bit) != 0) return;
+                if (received.compareAndSet(word, current, current | bit)) {
+                    receivedCount.incrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        private void unmarkReceived(int index) {
+            int word = index >>> 6;
+            long bit = 1L << (index & 63);
+            while (true) {
+                long current = received.get(word);
+                if ((current & bit) == 0) return;
+                if (received.compareAndSet(word, current, current & ~bit)) {
+                    receivedCount.decrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        public boolean hasChunk(int index) {
+            return (received.get(index >>> 6) & (1L << (index & 63))) != 0;
+        }
+
+        public int receivedCount() {
+            return receivedCount.get();
+        }
+
+        public boolean isComplete() {
+            return receivedCount.get() == chunkCount;
+        }
+
+        public List<Integer> missingChunks() {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < chunkCount; i++) {
+                if (!hasChunk(i)) missing.add(i);
+            }
+            return missing;
+        }
+    }
+}
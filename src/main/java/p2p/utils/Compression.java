@@ -0,0 +1,143 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP content codings and the rules for when to use them.
+ *
+ * A {@link Codec} wraps an output stream; {@link #GZIP} and {@link #DEFLATE}
+ * come with the JDK, other codings can be added by implementing the interface
+ * and passing it to {@link #negotiate}.
+ */
+public final class Compression {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public interface Codec {
+        /** Token used in Accept-Encoding and Content-Encoding. */
+        String token();
+
+        OutputStream encode(OutputStream out) throws IOException;
+    }
+
+    public static final Codec GZIP = new Codec() {
+        @Override
+        public String token() {
+            return "gzip";
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+    };
+
+    /** HTTP "deflate" is the zlib format, which is what DeflaterOutputStream writes by default. */
+    public static final Codec DEFLATE = new Codec() {
+        @Override
+        public String token() {
+            return "deflate";
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) {
+            Deflater deflater = new Deflater();
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end(); // not done by the stream when the deflater is passed in
+                    }
+                }
+            };
+        }
+    };
+
+    public static final List<Codec> DEFAULT_CODECS = List.of(GZIP, DEFLATE);
+
+    private static final Set<String> COMPRESSIBLE_APPLICATION_TYPES = Set.of(
+            "application/json", "application/xml", "application/javascript", "application/x-javascript",
+            "application/ecmascript", "application/csv", "application/x-ndjson", "application/x-yaml",
+            "application/yaml", "application/sql", "application/x-sh", "application/x-tar", "application/rtf",
+            "application/wasm", "image/svg+xml", "image/bmp", "image/x-icon");
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = Set.of(
+            "txt", "log", "csv", "tsv", "json", "ndjson", "xml", "html", "htm", "md", "yaml", "yml", "sql",
+            "js", "css", "svg", "tar", "ini", "conf", "properties");
+
+    private Compression() {
+    }
+
+    /**
+     * True if a file is worth compressing: text and text-like formats are,
+     * while images, audio, video and archives are already compressed. Files
+     * sent as application/octet-stream are judged by their extension.
+     */
+    public static boolean isCompressible(String contentType, String filename) {
+        String type = contentType == null ? "" : contentType.toLowerCase(Locale.ROOT);
+        int semicolon = type.indexOf(';');
+        if (semicolon >= 0) type = type.substring(0, semicolon);
+        type = type.trim();
+
+        if (type.startsWith("text/") || COMPRESSIBLE_APPLICATION_TYPES.contains(type)
+                || type.endsWith("+json") || type.endsWith("+xml")) {
+            return true;
+        }
+        if (!type.isEmpty() && !type.equals("application/octet-stream")) {
+            return false;
+        }
+        int dot = filename == null ? -1 : filename.lastIndexOf('.');
+        return dot >= 0 && COMPRESSIBLE_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Picks the codec the client prefers from an Accept-Encoding header,
+     * honouring q-values and "*". Ties go to the earlier codec in
+     * {@code codecs}. Returns null when the response should not be encoded.
+     */
+    public static Codec negotiate(String acceptEncoding, List<Codec> codecs) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) return null;
+
+        Codec best = null;
+        double bestQuality = 0;
+        for (Codec codec : codecs) {
+            double quality = quality(acceptEncoding, codec.token());
+            if (quality > bestQuality) {
+                best = codec;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    private static double quality(String acceptEncoding, String token) {
+        double wildcard = 0;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] params = entry.split(";");
+            String coding = params[0].trim();
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(token)) return q;
+            if (coding.equals("*")) wildcard = q;
+        }
+        return wildcard;
+    }
+}
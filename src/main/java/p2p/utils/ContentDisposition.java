@@ -0,0 +1,43 @@
+package p2p.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code Content-Disposition: attachment} for a download (RFC 6266).
+ *
+ * Filenames come from uploaders, so they are never copied into the header
+ * as they are: the quoted {@code filename} is an ASCII fallback with quotes,
+ * backslashes, percent signs and anything outside printable ASCII replaced
+ * by {@code _}, and {@code filename*} carries the exact name percent-encoded
+ * as UTF-8 (RFC 8187, formerly RFC 5987) for clients that understand it.
+ */
+public class ContentDisposition {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private ContentDisposition() {
+    }
+
+    public static String attachment(String filename) {
+        StringBuilder header = new StringBuilder(32 + filename.length() * 4).append("attachment; filename=\"");
+        for (int i = 0; i < filename.length(); i++) {
+            char c = filename.charAt(i);
+            header.append(c < 0x20 || c >= 0x7F || c == '"' || c == '\\' || c == '%' ? '_' : c);
+        }
+        header.append("\"; filename*=UTF-8''");
+        for (byte b : filename.getBytes(StandardCharsets.UTF_8)) {
+            if (isAttrChar(b)) {
+                header.append((char) b);
+            } else {
+                header.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+        }
+        return header.toString();
+    }
+
+    /** The characters RFC 8187 lets through unencoded. */
+    private static boolean isAttrChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || "!#$&+-.^_`|~".indexOf(b) >= 0;
+    }
+}
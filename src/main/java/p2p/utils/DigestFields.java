@@ -0,0 +1,46 @@
+package p2p.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * The integrity fields of RFC 9530. {@code Repr-Digest} (of the whole file)
+ * and {@code Content-Digest} (of one message body) hold a dictionary such as
+ * {@code sha-256=:<base64>:, crc32c=:<base64>:}.
+ */
+public class DigestFields {
+
+    public static final String SHA_256 = "sha-256";
+    public static final String CRC32C = "crc32c";
+
+    /** One dictionary member; join several with ", ". */
+    public static String member(String algorithm, byte[] value) {
+        return algorithm + "=:" + Base64.getEncoder().encodeToString(value) + ":";
+    }
+
+    /** A CRC32C value as the 4 big-endian bytes the field carries. */
+    public static byte[] crc32c(long value) {
+        return ByteBuffer.allocate(4).putInt((int) value).array();
+    }
+
+    /**
+     * The value for {@code algorithm} in a digest field, or null if the field
+     * is absent or does not mention it. Throws IllegalArgumentException for a
+     * member that is not a byte sequence.
+     */
+    public static byte[] parse(String field, String algorithm) {
+        if (field == null) return null;
+        for (String member : field.split(",")) {
+            int eq = member.indexOf('=');
+            if (eq < 0 || !member.substring(0, eq).trim().equalsIgnoreCase(algorithm)) continue;
+            String value = member.substring(eq + 1).trim();
+            int params = value.indexOf(';');
+            if (params >= 0) value = value.substring(0, params).trim();
+            if (value.length() < 2 || value.charAt(0) != ':' || value.charAt(value.length() - 1) != ':') {
+                throw new IllegalArgumentException("Malformed " + algorithm + " digest");
+            }
+            return Base64.getDecoder().decode(value.substring(1, value.length() - 1));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,100 @@
+package p2p.utils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate access counts for cache admission (the TinyLFU sketch).
+ *
+ * A count-min sketch with four rows of 4-bit counters packed sixteen to a
+ * long: an item's estimate is the smallest of its four counters, so hash
+ * collisions can only overstate it. Counters saturate at 15, and once
+ * {@code 10 * width} increments have been recorded every counter is halved,
+ * which lets the estimates follow what is popular now rather than what was
+ * popular an hour ago.
+ *
+ * Increments are CAS updates on the packed words and never block. Halving
+ * runs on whichever thread crosses the threshold; increments racing with it
+ * may be lost, which only makes the estimate slightly lower.
+ */
+public class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final int width;
+    private final AtomicLongArray table;     // ROWS rows of width / 16 words
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+    private final AtomicBoolean resetting = new AtomicBoolean();
+
+    /** @param expectedItems roughly how many distinct items are worth telling apart */
+    public FrequencySketch(int expectedItems) {
+        int size = 16;
+        while (size < expectedItems && size < (1 << 24)) size <<= 1;
+        this.width = size;
+        this.table = new AtomicLongArray(ROWS * (width >>> 4));
+        this.sampleSize = 10 * width;
+    }
+
+    public void increment(Object item) {
+        int hash = spread(item.hashCode());
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            added |= incrementAt(row, index(hash, row));
+        }
+        if (added && additions.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    /** Estimated number of recent accesses, 0 to 15. */
+    public int frequency(Object item) {
+        int hash = spread(item.hashCode());
+        int frequency = 15;
+        for (int row = 0; row < ROWS; row++) {
+            int counter = index(hash, row);
+            long word = table.get(row * (width >>> 4) + (counter >>> 4));
+            frequency = Math.min(frequency, (int) (word >>> ((counter & 15) << 2)) & 15);
+        }
+        return frequency;
+    }
+
+    private boolean incrementAt(int row, int counter) {
+        int slot = row * (width >>> 4) + (counter >>> 4);
+        int shift = (counter & 15) << 2;
+        while (true) {
+            long word = table.get(slot);
+            if (((word >>> shift) & 15) == 15) return false;
+            if (table.compareAndSet(slot, word, word + (1L << shift))) return true;
+        }
+    }
+
+    private void reset() {
+        if (!resetting.compareAndSet(false, true)) return;
+        try {
+            for (int i = 0; i < table.length(); i++) {
+                long word;
+                do {
+                    word = table.get(i);
+                } while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+            }
+            additions.set(additions.get() / 2);
+        } finally {
+            resetting.set(false);
+        }
+    }
+
+    private int index(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & (width - 1);
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
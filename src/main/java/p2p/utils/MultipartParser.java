@@ -0,0 +1,392 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming multipart/form-data parser.
+ *
+ * The request body is read through a fixed-size buffer and each part is handed
+ * to a {@link PartHandler} as an {@link InputStream} that ends at the next
+ * boundary, so memory use does not depend on the size of the upload.
+ *
+ * Everything works on bytes: delimiters are found with Boyer-Moore-Horspool,
+ * which looks at roughly one byte in every delimiter-length bytes of content,
+ * and part headers are matched in place. Only the header values a caller
+ * asks for (name, filename, content type) ever become Strings.
+ */
+public class MultipartParser {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final byte[] CONTENT_DISPOSITION = "content-disposition".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_TYPE = "content-type".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NAME = "name".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FILENAME = "filename".getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private final byte[] delimiter;   // "\r\n--" + boundary
+    private final int[] shift;        // Horspool skip table for delimiter
+    private final byte[] buffer;
+    private int head;                 // first unread byte
+    private int tail;                 // one past the last valid byte
+    private int scanned;              // no delimiter starts in [head, scanned); saves rescanning on small reads
+    private int match = -1;           // start of the next delimiter once found, else -1
+    private boolean eof;
+
+    public MultipartParser(InputStream in, String boundary) {
+        this(in, boundary, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MultipartParser(InputStream in, String boundary, int bufferSize) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.shift = shiftTable(delimiter);
+        if (bufferSize < Math.max(MAX_HEADER_SIZE, delimiter.length * 2)) {
+            throw new IllegalArgumentException("Buffer too small for boundary: " + bufferSize);
+        }
+        this.buffer = new byte[bufferSize];
+        // The first boundary is not preceded by CRLF; seed one so every
+        // delimiter (including the first) has the same shape.
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        this.tail = 2;
+    }
+
+    /**
+     * Extracts the boundary parameter from a multipart Content-Type header,
+     * or returns null if there is none.
+     */
+    public static String extractBoundary(String contentType) {
+        if (contentType == null) return null;
+        int idx = contentType.toLowerCase().indexOf("boundary=");
+        if (idx == -1) return null;
+        String boundary = contentType.substring(idx + 9);
+        int semicolon = boundary.indexOf(';');
+        if (semicolon != -1) boundary = boundary.substring(0, semicolon);
+        boundary = boundary.trim();
+        if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        return boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * Parses the whole body, invoking the handler once per part. Any bytes the
+     * handler leaves unread are skipped before moving on to the next part.
+     *
+     * @return the number of parts seen
+     */
+    public int parse(PartHandler handler) throws IOException {
+        // Skip the preamble up to and including the first delimiter
+        if (!skipToDelimiter()) {
+            throw new IOException("Malformed multipart body: no boundary found");
+        }
+
+        int parts = 0;
+        while (true) {
+            if (!fill(2)) throw new IOException("Malformed multipart body: truncated after boundary");
+            if (buffer[head] == '-' && buffer[head + 1] == '-') {
+                return parts; // closing delimiter
+            }
+            skipTransportPadding();
+
+            Part part = readHeaders();
+            PartInputStream content = new PartInputStream();
+            handler.handlePart(part, content);
+            content.drain();
+            parts++;
+        }
+    }
+
+    private boolean skipToDelimiter() throws IOException {
+        while (true) {
+            int pos = nextDelimiter();
+            if (pos != -1) {
+                consumeDelimiter(pos);
+                return true;
+            }
+            if (eof) return false;
+            // Keep a possible partial match at the end of the buffer
+            head = Math.max(head, scanned);
+            if (!readMore()) return false;
+        }
+    }
+
+    /**
+     * Start of the next delimiter in the buffer, or -1. Bytes already known
+     * not to start one are not scanned again.
+     */
+    private int nextDelimiter() {
+        if (match != -1) return match;
+        int from = Math.max(head, scanned);
+        match = indexOf(buffer, from, tail, delimiter, shift);
+        if (match == -1) scanned = Math.max(from, tail - delimiter.length + 1);
+        return match;
+    }
+
+    private void consumeDelimiter(int pos) {
+        head = pos + delimiter.length;
+        scanned = head;
+        match = -1;
+    }
+
+    private void skipTransportPadding() throws IOException {
+        while (true) {
+            if (!fill(2)) throw new IOException("Malformed multipart body: truncated after boundary");
+            byte b = buffer[head];
+            if (b == ' ' || b == '\t') {
+                head++;
+            } else if (b == '\r' && buffer[head + 1] == '\n') {
+                head += 2;
+                return;
+            } else {
+                throw new IOException("Malformed multipart body: expected CRLF after boundary");
+            }
+        }
+    }
+
+    private Part readHeaders() throws IOException {
+        Part part = new Part();
+        while (true) {
+            int lineEnd;
+            while ((lineEnd = findCrlf()) == -1) {
+                if (tail - head >= MAX_HEADER_SIZE) throw new IOException("Multipart header too large");
+                if (!readMore()) throw new IOException("Malformed multipart body: truncated headers");
+            }
+            if (lineEnd == head) {
+                head += 2;
+                return part;
+            }
+            parseHeader(part, head, lineEnd);
+            head = lineEnd + 2;
+        }
+    }
+
+    private int findCrlf() {
+        for (int i = head; i < tail - 1; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n') return i;
+        }
+        return -1;
+    }
+
+    /** Reads the one header line in buffer[start, end) into {@code part}, if it is one we use. */
+    private void parseHeader(Part part, int start, int end) {
+        int colon = start;
+        while (colon < end && buffer[colon] != ':') colon++;
+        if (colon == end) return;
+        int nameStart = skipSpace(start, colon);
+        int nameEnd = trimSpace(nameStart, colon);
+        int valueStart = skipSpace(colon + 1, end);
+        int valueEnd = trimSpace(valueStart, end);
+        if (equalsIgnoreCase(nameStart, nameEnd, CONTENT_DISPOSITION)) {
+            part.name = dispositionParam(valueStart, valueEnd, NAME);
+            part.filename = dispositionParam(valueStart, valueEnd, FILENAME);
+        } else if (equalsIgnoreCase(nameStart, nameEnd, CONTENT_TYPE)) {
+            part.contentType = new String(buffer, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Value of a Content-Disposition parameter, or null. A quoted value runs
+     * to the closing quote, so a filename may contain ';'.
+     */
+    private String dispositionParam(int start, int end, byte[] param) {
+        int i = start;
+        while (i < end) {
+            // Each round handles one ';'-separated token, e.g. form-data, name="x" or filename=y
+            int keyStart = skipSpace(i, end);
+            int keyEnd = keyStart;
+            while (keyEnd < end && buffer[keyEnd] != '=' && buffer[keyEnd] != ';') keyEnd++;
+            boolean wanted = keyEnd < end && buffer[keyEnd] == '='
+                    && equalsIgnoreCase(keyStart, trimSpace(keyStart, keyEnd), param);
+
+            int valueStart = keyEnd < end && buffer[keyEnd] == '=' ? skipSpace(keyEnd + 1, end) : keyEnd;
+            int valueEnd;
+            if (valueStart < end && buffer[valueStart] == '"') {
+                int close = valueStart + 1;
+                while (close < end && buffer[close] != '"') close++;
+                if (wanted) return new String(buffer, valueStart + 1, close - valueStart - 1, StandardCharsets.UTF_8);
+                valueEnd = close;
+            } else {
+                valueEnd = valueStart;
+                while (valueEnd < end && buffer[valueEnd] != ';') valueEnd++;
+                if (wanted) {
+                    return new String(buffer, valueStart, trimSpace(valueStart, valueEnd) - valueStart, StandardCharsets.UTF_8);
+                }
+            }
+            i = valueEnd;
+            while (i < end && buffer[i] != ';') i++;
+            i++;
+        }
+        return null;
+    }
+
+    private int skipSpace(int from, int to) {
+        while (from < to && (buffer[from] == ' ' || buffer[from] == '\t')) from++;
+        return from;
+    }
+
+    private int trimSpace(int from, int to) {
+        while (to > from && (buffer[to - 1] == ' ' || buffer[to - 1] == '\t')) to--;
+        return to;
+    }
+
+    /** Compares buffer[start, end) with a lower-case ASCII token, ignoring ASCII case. */
+    private boolean equalsIgnoreCase(int start, int end, byte[] lowerCase) {
+        if (end - start != lowerCase.length) return false;
+        for (int i = 0; i < lowerCase.length; i++) {
+            byte b = buffer[start + i];
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != lowerCase[i]) return false;
+        }
+        return true;
+    }
+
+    /** Makes sure at least {@code n} unread bytes are buffered; false on EOF. */
+    private boolean fill(int n) throws IOException {
+        while (tail - head < n) {
+            if (!readMore()) return false;
+        }
+        return true;
+    }
+
+    /** Compacts the buffer and reads more input; false if nothing more can be read. */
+    private boolean readMore() throws IOException {
+        if (eof) return false;
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            scanned = Math.max(0, scanned - head);
+            if (match != -1) match -= head;
+            head = 0;
+        }
+        if (tail == buffer.length) return false;
+        int read = in.read(buffer, tail, buffer.length - tail);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        tail += read;
+        return true;
+    }
+
+    /** Index of the first occurrence of {@code sequence} in data[from, to), or -1. */
+    public static int findSequence(byte[] data, int from, int to, byte[] sequence) {
+        return indexOf(data, from, to, sequence, shiftTable(sequence));
+    }
+
+    /**
+     * Horspool's skip table: how far the window may move when its last byte
+     * is b, which is the distance from the last occurrence of b in the
+     * pattern (not counting the final position) to the end.
+     */
+    private static int[] shiftTable(byte[] pattern) {
+        int[] shift = new int[256];
+        Arrays.fill(shift, Math.max(1, pattern.length));
+        for (int i = 0; i < pattern.length - 1; i++) {
+            shift[pattern[i] & 0xff] = pattern.length - 1 - i;
+        }
+        return shift;
+    }
+
+    /**
+     * Boyer-Moore-Horspool search. On content that does not resemble the
+     * pattern nearly every window is rejected by its last byte and skipped
+     * by the full pattern length.
+     */
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern, int[] shift) {
+        if (pattern.length == 0) return from <= to ? from : -1;
+        int last = pattern.length - 1;
+        byte lastByte = pattern[last];
+        for (int i = from; i <= to - pattern.length; i += shift[data[i + last] & 0xff]) {
+            if (data[i + last] != lastByte) continue;
+            int j = 0;
+            while (j < last && data[i + j] == pattern[j]) j++;
+            if (j == last) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Content of the current part. Reads stop just before the next delimiter,
+     * which is left in the buffer for the parser.
+     */
+    private class PartInputStream extends InputStream {
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) return -1;
+            if (len == 0) return 0;
+            while (true) {
+                int pos = nextDelimiter();
+                int available;
+                if (pos != -1) {
+                    available = pos - head;
+                    if (available == 0) {
+                        consumeDelimiter(pos);
+                        done = true;
+                        return -1;
+                    }
+                } else {
+                    // The last delimiter.length - 1 bytes may be the start of a delimiter
+                    available = scanned - head;
+                }
+                if (available > 0) {
+                    int n = Math.min(len, available);
+                    System.arraycopy(buffer, head, b, off, n);
+                    head += n;
+                    return n;
+                }
+                if (!readMore()) {
+                    throw new IOException("Malformed multipart body: missing closing boundary");
+                }
+            }
+        }
+
+        void drain() throws IOException {
+            byte[] skip = new byte[4096];
+            while (read(skip, 0, skip.length) != -1) {
+                // discard
+            }
+        }
+    }
+
+    /** Headers of a single part. */
+    public static class Part {
+        private String name;
+        private String filename;
+        private String contentType;
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getContentType() {
+            return contentType == null ? "application/octet-stream" : contentType;
+        }
+
+        public boolean isFile() {
+            return filename != null;
+        }
+    }
+
+    /** Callback invoked for every part in the body. */
+    public interface PartHandler {
+        void handlePart(Part part, InputStream content) throws IOException;
+    }
+}
@@ -0,0 +1,132 @@
+package p2p.utils;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out short share codes from a fixed range without locks.
+ *
+ * Free codes sit in a bounded ring buffer (the multi-producer,
+ * multi-consumer design by Dmitry Vyukov): each slot carries a sequence
+ * number, and producers and consumers each claim a slot with one CAS on
+ * their own cursor. Allocating and releasing are O(1) no matter how many
+ * codes are in use, unlike drawing random codes until a free one turns up.
+ *
+ * The ring starts out as a SecureRandom shuffle of the whole range, so the
+ * codes handed out are not sequential and cannot be predicted from earlier
+ * ones. Released codes go to the back of the queue, which also keeps a code
+ * from being reused right after its share went away.
+ */
+public class ShareCodeAllocator {
+
+    /** The range the old per-share ports came from; still five digits, which keeps codes easy to type. */
+    public static final int DEFAULT_MIN_CODE = 49152;
+    public static final int DEFAULT_MAX_CODE = 65535;
+
+    private final int minCode;
+    private final int capacity;
+    private final int mask;
+    private final int[] codes;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray allocated; // bitmap over the range, guards against double release
+    private final AtomicLong enqueueCursor = new AtomicLong();
+    private final AtomicLong dequeueCursor = new AtomicLong();
+
+    public ShareCodeAllocator() {
+        this(DEFAULT_MIN_CODE, DEFAULT_MAX_CODE);
+    }
+
+    public ShareCodeAllocator(int minCode, int maxCode) {
+        if (maxCode < minCode) throw new IllegalArgumentException("Empty code range");
+        int count = maxCode - minCode + 1;
+        this.minCode = minCode;
+        int size = 1;
+        while (size < count) size <<= 1;
+        this.capacity = size;
+        this.mask = capacity - 1;
+        this.codes = new int[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.allocated = new AtomicLongArray((count + 63) / 64);
+
+        int[] shuffled = new int[count];
+        for (int i = 0; i < count; i++) shuffled[i] = minCode + i;
+        SecureRandom random = new SecureRandom();
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = swap;
+        }
+
+        for (int i = 0; i < capacity; i++) sequences.set(i, i);
+        for (int code : shuffled) enqueue(code);
+    }
+
+    /** Takes a free code, or returns -1 if every code is in use. */
+    public int allocate() {
+        while (true) {
+            long position = dequeueCursor.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeueCursor.compareAndSet(position, position + 1)) {
+                    int code = codes[index];
+                    sequences.set(index, position + capacity); // volatile write publishes the slot as free again
+                    setAllocated(code, true);
+                    return code;
+                }
+            } else if (difference < 0) {
+                if (enqueueCursor.get() <= position) return -1; // empty
+                // A release has claimed this slot but not filled it yet; it will in a moment
+                Thread.onSpinWait();
+            }
+            // Another thread moved the cursor; retry with the new position
+        }
+    }
+
+    /** Returns a code to the pool. False if the code was not allocated. */
+    public boolean release(int code) {
+        if (code < minCode || code - minCode >= allocated.length() * 64L) return false;
+        if (!setAllocated(code, false)) return false;
+        enqueue(code);
+        return true;
+    }
+
+    public boolean isAllocated(int code) {
+        int offset = code - minCode;
+        if (offset < 0 || offset >= allocated.length() * 64L) return false;
+        return (allocated.get(offset >>> 6) & (1L << (offset & 63))) != 0;
+    }
+
+    /** Free codes right now; only a snapshot under concurrent use. */
+    public int available() {
+        return (int) (enqueueCursor.get() - dequeueCursor.get());
+    }
+
+    private void enqueue(int code) {
+        // Never full: the ring has room for the whole range and each code is enqueued at most once
+        while (true) {
+            long position = enqueueCursor.get();
+            int index = (int) (position & mask);
+            if (sequences.get(index) == position && enqueueCursor.compareAndSet(position, position + 1)) {
+                codes[index] = code;
+                sequences.set(index, position + 1); // volatile write publishes the code to consumers
+                return;
+            }
+        }
+    }
+
+    /** Flips the code's bit; returns false if it already had the requested state. */
+    private boolean setAllocated(int code, boolean value) {
+        int offset = code - minCode;
+        int word = offset >>> 6;
+        long bit = 1L << (offset & 63);
+        while (true) {
+            long current = allocated.get(word);
+            if (((current & bit) != 0) == value) return false;
+            long next = value ? current | bit : current & ~bit;
+            if (allocated.compareAndSet(word, current, next)) return true;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package p2p.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel for deadlines.
+ *
+ * Four levels of 512 slots each; level {@code n} slots span 512^n ticks.
+ * Advancing one tick only touches the slot that is due, plus one slot of a
+ * higher level every 512^n ticks when its entries cascade down. The cost of a
+ * sweep is therefore proportional to the entries that expire (each entry is
+ * moved at most once per level), not to the number of entries scheduled.
+ *
+ * {@link #schedule} is safe to call from any thread. {@link #advance} must
+ * only be called from a single thread at a time.
+ */
+public class TimingWheel<T> {
+
+    private static final int BITS = 9;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final ArrayDeque<Entry<T>>[][] wheels;
+    private final Queue<Entry<T>> pending = new ConcurrentLinkedQueue<>();
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) throw new IllegalArgumentException("Tick must be positive");
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        this.wheels = new ArrayDeque[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheels[level][slot] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    /** Schedules {@code item} to fire at the first tick at or after {@code deadlineMillis}. */
+    public void schedule(T item, long deadlineMillis) {
+        pending.add(new Entry<>(item, (deadlineMillis + tickMillis - 1) / tickMillis));
+    }
+
+    /**
+     * Moves the wheel forward to {@code nowMillis}, handing every item whose
+     * deadline has passed to {@code onExpired}.
+     *
+     * @return the number of expired items
+     */
+    public int advance(long nowMillis, Consumer<T> onExpired) {
+        Entry<T> entry;
+        while ((entry = pending.poll()) != null) {
+            place(entry, false);
+            size++;
+        }
+
+        long targetTick = nowMillis / tickMillis;
+        int expired = 0;
+        while (currentTick < targetTick) {
+            currentTick++;
+            cascade();
+            ArrayDeque<Entry<T>> due = wheels[0][(int) (currentTick & MASK)];
+            while ((entry = due.poll()) != null) {
+                size--;
+                expired++;
+                onExpired.accept(entry.item);
+            }
+        }
+        return expired;
+    }
+
+    /** Number of scheduled items, as of the last {@link #advance}. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * When the current tick crosses a level boundary, redistributes the
+     * matching higher-level slot. Higher levels go first so their entries can
+     * land in the lower-level slot that is cascaded right after.
+     */
+    private void cascade() {
+        int top = 0;
+        while (top + 1 < LEVELS && (currentTick & ((1L << (BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+        for (int level = top; level >= 1; level--) {
+            ArrayDeque<Entry<T>> slot = wheels[level][(int) ((currentTick >>> (BITS * level)) & MASK)];
+            int count = slot.size();
+            for (int i = 0; i < count; i++) {
+                place(slot.poll(), true);
+            }
+        }
+    }
+
+    /**
+     * @param cascading true while redistributing during a tick, when the
+     *                  current level-0 slot has not been processed yet
+     */
+    private void place(Entry<T> entry, boolean cascading) {
+        long delta = entry.deadlineTick - currentTick;
+        if (delta <= 0) {
+            // Already due: fire in the slot that is processed next
+            long tick = cascading ? currentTick : currentTick + 1;
+            wheels[0][(int) (tick & MASK)].add(entry);
+            return;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        long slotTick = entry.deadlineTick;
+        if (delta >= (1L << (BITS * LEVELS))) {
+            // Beyond the top level: park in its last slot and re-place on cascade
+            slotTick = currentTick + (1L << (BITS * LEVELS)) - 1;
+        }
+        wheels[level][(int) ((slotTick >>> (BITS * level)) & MASK)].add(entry);
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        final long deadlineTick;
+
+        Entry(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Helpers for moving file contents to clients through pooled copy buffers.
+ *
+ * Where the target is a socket channel, callers use {@link FileChannel#transferTo}
+ * directly instead, so the kernel sends the bytes (sendfile) without them
+ * entering the Java heap.
+ */
+public class TransferUtils {
+
+    public static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Full-size buffers are shared through a small pool rather than kept per thread, since with virtual
+    // threads every request would get (and leave behind) a buffer of its own
+    private static final int POOLED_BUFFERS = 64;
+    private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    private TransferUtils() {
+    }
+
+    /**
+     * Copies a region of a file to a plain output stream, for targets that
+     * do not expose a channel (such as the HttpServer response body). Uses
+     * positional reads into a pooled buffer, so large copies allocate no
+     * buffers of their own.
+     */
+    public static long copy(FileChannel source, long position, long count, OutputStream target) throws IOException {
+        byte[] buffer = acquire(count);
+        try {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long copied = 0;
+            while (copied < count) {
+                wrapped.clear();
+                wrapped.limit((int) Math.min(buffer.length, count - copied));
+                int read = source.read(wrapped, position + copied);
+                if (read == -1) break;
+                target.write(buffer, 0, read);
+                copied += read;
+            }
+            return copied;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Copies a region of an in-memory (typically direct) buffer to an output
+     * stream through the same buffer pool. The source buffer's position
+     * and limit are left alone, so one buffer can be shared by many readers.
+     */
+    public static long copy(ByteBuffer source, long position, long count, OutputStream target) throws IOException {
+        byte[] buffer = acquire(count);
+        try {
+            long copied = 0;
+            while (copied < count) {
+                int n = (int) Math.min(buffer.length, count - copied);
+                source.get((int) (position + copied), buffer, 0, n);
+                target.write(buffer, 0, n);
+                copied += n;
+            }
+            return copied;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /** A pooled full-size buffer, or a fresh one sized to {@code count} when that is smaller. */
+    private static byte[] acquire(long count) {
+        if (count < COPY_BUFFER_SIZE) return new byte[(int) Math.max(count, 0)];
+        byte[] buffer = BUFFERS.poll();
+        return buffer != null ? buffer : new byte[COPY_BUFFER_SIZE];
+    }
+
+    private static void release(byte[] buffer) {
+        if (buffer.length == COPY_BUFFER_SIZE) BUFFERS.offer(buffer);
+    }
+}
@@ -0,0 +1,144 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.config.ExecutionConfig;
+
+/**
+ * Download latency under many slow concurrent clients, for each execution mode.
+ * Slow to run, so it is opt-in:
+ * <pre>mvn test -Dtest=FileControllerLoadTest -Dpeerlink.loadtest=true</pre>
+ */
+@EnabledIfSystemProperty(named = "peerlink.loadtest", matches = "true")
+public class FileControllerLoadTest {
+
+    private static final int FILE_SIZE = 512 * 1024;
+    private static final int[] CLIENTS = {10, 100, 1000};
+
+    @TempDir
+    Path uploadDir;
+
+    @Test
+    public void reportsP99LatencyPerExecutionMode() throws Exception {
+        List<ExecutionConfig> configs = new ArrayList<>();
+        configs.add(new ExecutionConfig(ExecutionConfig.Mode.POOL, 10, 0, 60_000, 1024));
+        configs.add(new ExecutionConfig(ExecutionConfig.Mode.POOL, ExecutionConfig.DEFAULT_POOL_SIZE, 0, 60_000, 1024));
+        if (ExecutionConfig.virtualThreadsAvailable()) {
+            configs.add(new ExecutionConfig(ExecutionConfig.Mode.VIRTUAL, 1, 0, 60_000, 1024));
+        } else {
+            System.out.println("Virtual threads unavailable on Java " + Runtime.version().feature() + ", skipping that mode");
+        }
+
+        System.out.printf("%-40s %8s %10s %10s %8s%n", "mode", "clients", "p50 ms", "p99 ms", "errors");
+        for (ExecutionConfig config : configs) {
+            FileController controller = new FileController(0, uploadDir, config);
+            controller.start();
+            try {
+                String fileId = upload(controller.getPort());
+                for (int clients : CLIENTS) {
+                    run(config, controller.getPort(), fileId, clients);
+                }
+            } finally {
+                controller.stop();
+            }
+        }
+    }
+
+    private void run(ExecutionConfig config, int port, String fileId, int clients) throws InterruptedException {
+        long[] latencies = new long[clients];
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    long received = slowDownload(port, fileId);
+                    latencies[client] = System.nanoTime() - begin;
+                    if (received < FILE_SIZE) errors.incrementAndGet();
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    latencies[client] = Long.MAX_VALUE;
+                } finally {
+                    done.countDown();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        start.countDown();
+        done.await();
+
+        Arrays.sort(latencies);
+        System.out.printf("%-40s %8d %10.1f %10.1f %8d%n", config, clients,
+                latencies[clients / 2] / 1e6, latencies[(int) Math.ceil(clients * 0.99) - 1] / 1e6, errors.get());
+    }
+
+    /** Downloads the file through a small receive window, pausing between reads like a slow link. */
+    private long slowDownload(int port, String fileId) throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(8 * 1024);
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /download/" + fileId + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[16 * 1024];
+            long total = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                total += n;
+                Thread.sleep(1);
+            }
+            return total;
+        }
+    }
+
+    private String upload(int port) throws Exception {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        String boundary = "loadtestboundary";
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"load.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(content);
+        body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        HttpResponse<String> response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/upload"))
+                        .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        String json = response.body();
+        int start = json.indexOf("\"id\": \"") + 7;
+        return json.substring(start, json.indexOf('"', start));
+    }
+}
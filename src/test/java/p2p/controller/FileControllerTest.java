@@ -0,0 +1,404 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.config.ExecutionConfig;
+import p2p.config.StorageConfig;
+
+public class FileControllerTest {
+
+    private static final String BOUNDARY = "----PeerLinkTestBoundary";
+    private static final Pattern FILE_ID = Pattern.compile("\\{\"id\": \"([^\"]+)\", \"filename\"");
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private FileController controller;
+
+    @TempDir
+    Path uploadDir;
+
+    @BeforeEach
+    public void start() throws IOException {
+        controller = new FileController(0, uploadDir);
+        controller.start();
+    }
+
+    @AfterEach
+    public void stop() {
+        controller.stop();
+    }
+
+    @Test
+    public void uploadOfSeveralFilesCanBeDownloadedAsOneZip() throws Exception {
+        byte[] notes = "hello hello hello hello hello".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        byte[] photo = new byte[300 * 1024];
+        new Random(5).nextBytes(photo);
+        byte[] moreNotes = "second file with the same name".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        part(body, "notes.txt", "text/plain", notes);
+        part(body, "photo.jpg", "image/jpeg", photo);
+        part(body, "notes.txt", "text/plain", moreNotes);
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        HttpResponse<String> upload = client.send(HttpRequest.newBuilder(uri("/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, upload.statusCode(), upload.body());
+
+        List<String> ids = new ArrayList<>();
+        Matcher matcher = FILE_ID.matcher(upload.body());
+        while (matcher.find()) ids.add(matcher.group(1));
+        assertEquals(3, ids.size(), upload.body());
+
+        HttpResponse<InputStream> batch = client.send(HttpRequest.newBuilder(uri("/download/batch?ids=" + String.join(",", ids)))
+                .GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        assertEquals(200, batch.statusCode());
+        assertEquals("application/zip", batch.headers().firstValue("Content-Type").orElse(""));
+
+        try (ZipInputStream zip = new ZipInputStream(batch.body())) {
+            assertEntry(zip, "notes.txt", ZipEntry.DEFLATED, notes);
+            // Already compressed, so stored as is
+            assertEntry(zip, "photo.jpg", ZipEntry.STORED, photo);
+            assertEntry(zip, "notes (2).txt", ZipEntry.DEFLATED, moreNotes);
+            assertEquals(null, zip.getNextEntry());
+        }
+
+        HttpResponse<String> missing = client.send(HttpRequest.newBuilder(uri("/download/batch?ids=" + ids.get(0) + ",nope"))
+                .GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, missing.statusCode());
+    }
+
+    @Test
+    public void batchSpendsNoBudgetUnlessEveryFileIsServed() throws Exception {
+        byte[] notes = "only once".getBytes(StandardCharsets.UTF_8);
+        String id = upload("?maxDownloads=1", "notes.txt", "text/plain", notes);
+
+        HttpResponse<String> missing = client.send(HttpRequest.newBuilder(uri("/download/batch?ids=" + id + ",nope"))
+                .GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, missing.statusCode());
+
+        // The single allowed download is still there, and the file is read before the share goes
+        HttpResponse<InputStream> batch = client.send(HttpRequest.newBuilder(uri("/download/batch?ids=" + id))
+                .GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        assertEquals(200, batch.statusCode());
+        try (ZipInputStream zip = new ZipInputStream(batch.body())) {
+            assertEntry(zip, "notes.txt", ZipEntry.DEFLATED, notes);
+            assertEquals(null, zip.getNextEntry());
+        }
+
+        HttpResponse<String> spent = client.send(HttpRequest.newBuilder(uri("/download/" + id)).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, spent.statusCode());
+    }
+
+    @Test
+    public void rangedResponsesCountAgainstTheDownloadLimit() throws Exception {
+        byte[] content = new byte[10_000];
+        new Random(8).nextBytes(content);
+        String id = upload("?maxDownloads=2", "data.bin", "application/octet-stream", content);
+
+        // Neither an unsatisfiable range nor HEAD sends a body, so neither counts
+        assertEquals(416, get("/download/" + id, "Range", "bytes=20000-").statusCode());
+        HttpResponse<Void> head = client.send(HttpRequest.newBuilder(uri("/download/" + id))
+                .method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+        assertEquals(200, head.statusCode());
+
+        HttpResponse<byte[]> tail = get("/download/" + id, "Range", "bytes=1-");
+        assertEquals(206, tail.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 1, content.length), tail.body());
+        HttpResponse<byte[]> last = get("/download/" + id, "Range", "bytes=5000-5999");
+        assertEquals(206, last.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 5000, 6000), last.body());
+
+        assertEquals(404, get("/download/" + id, "Range", "bytes=1-").statusCode());
+        assertEquals(404, get("/download/" + id).statusCode());
+    }
+
+    @Test
+    public void rangesAndConditionalRequestsFollowRfc9110() throws Exception {
+        byte[] content = new byte[10_000];
+        new Random(3).nextBytes(content);
+        String id = upload("", "data.bin", "application/octet-stream", content);
+
+        HttpResponse<byte[]> single = get("/download/" + id, "Range", "bytes=100-199");
+        assertEquals(206, single.statusCode());
+        assertEquals("bytes 100-199/10000", single.headers().firstValue("Content-Range").orElse(""));
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), single.body());
+        String etag = single.headers().firstValue("ETag").orElseThrow();
+
+        HttpResponse<byte[]> unsatisfiable = get("/download/" + id, "Range", "bytes=10000-");
+        assertEquals(416, unsatisfiable.statusCode());
+        assertEquals("bytes */10000", unsatisfiable.headers().firstValue("Content-Range").orElse(""));
+
+        HttpResponse<byte[]> multi = get("/download/" + id, "Range", "bytes=0-9,5000-5099");
+        assertEquals(206, multi.statusCode());
+        String contentType = multi.headers().firstValue("Content-Type").orElse("");
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="), contentType);
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        // ISO-8859-1 maps every byte to one char, so part bodies can be compared byte for byte
+        String body = new String(multi.body(), StandardCharsets.ISO_8859_1);
+        String[] parts = body.split("\r\n--" + Pattern.quote(boundary));
+        assertEquals(4, parts.length, body);
+        assertEquals("", parts[0]);
+        assertPart(parts[1], "bytes 0-9/10000", Arrays.copyOfRange(content, 0, 10));
+        assertPart(parts[2], "bytes 5000-5099/10000", Arrays.copyOfRange(content, 5000, 5100));
+        assertEquals("--\r\n", parts[3]);
+
+        HttpResponse<byte[]> current = get("/download/" + id, "Range", "bytes=100-199", "If-Range", etag);
+        assertEquals(206, current.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), current.body());
+        // The file changed as far as the client knows, so it gets all of it
+        HttpResponse<byte[]> stale = get("/download/" + id, "Range", "bytes=100-199", "If-Range", "\"stale\"");
+        assertEquals(200, stale.statusCode());
+        assertArrayEquals(content, stale.body());
+
+        HttpResponse<byte[]> notModified = get("/download/" + id, "If-None-Match", etag);
+        assertEquals(304, notModified.statusCode());
+        assertEquals(0, notModified.body().length);
+        assertEquals(200, get("/download/" + id, "If-None-Match", "\"stale\"").statusCode());
+    }
+
+    @Test
+    public void downloadsAreEncodedAsTheClientAccepts() throws Exception {
+        byte[] notes = "the quick brown fox jumps over the lazy dog\n".repeat(500).getBytes(StandardCharsets.UTF_8);
+        String id = upload("", "notes.txt", "text/plain", notes);
+
+        HttpResponse<byte[]> gzip = get("/download/" + id, "Accept-Encoding", "gzip, deflate");
+        assertEquals(200, gzip.statusCode());
+        assertEquals("gzip", gzip.headers().firstValue("Content-Encoding").orElse(""));
+        assertEquals("Accept-Encoding", gzip.headers().firstValue("Vary").orElse(""));
+        assertTrue(gzip.body().length < notes.length);
+        assertArrayEquals(notes, new GZIPInputStream(new ByteArrayInputStream(gzip.body())).readAllBytes());
+
+        HttpResponse<byte[]> deflate = get("/download/" + id, "Accept-Encoding", "gzip;q=0, deflate");
+        assertEquals("deflate", deflate.headers().firstValue("Content-Encoding").orElse(""));
+        assertArrayEquals(notes, new InflaterInputStream(new ByteArrayInputStream(deflate.body())).readAllBytes());
+
+        for (String acceptEncoding : new String[] {"identity", "gzip;q=0, deflate;q=0"}) {
+            HttpResponse<byte[]> plain = get("/download/" + id, "Accept-Encoding", acceptEncoding);
+            assertEquals(200, plain.statusCode());
+            assertTrue(plain.headers().firstValue("Content-Encoding").isEmpty(), acceptEncoding);
+            assertEquals("Accept-Encoding", plain.headers().firstValue("Vary").orElse(""));
+            assertArrayEquals(notes, plain.body());
+        }
+
+        // The first gzip download left the compressed copy behind for this one
+        assertEquals(0, metric("peerlink_compression_cache_hits_total"));
+        HttpResponse<byte[]> again = get("/download/" + id, "Accept-Encoding", "gzip");
+        assertEquals("gzip", again.headers().firstValue("Content-Encoding").orElse(""));
+        assertArrayEquals(gzip.body(), again.body());
+        assertEquals(1, metric("peerlink_compression_cache_hits_total"));
+        assertEquals(2, metric("peerlink_compression_cache_misses_total"));
+    }
+
+    @Test
+    public void checksumsMatchTheUploadedBytes() throws Exception {
+        byte[] content = new byte[2_500_000];
+        new Random(11).nextBytes(content);
+        String id = upload("", "data.bin", "application/octet-stream", content);
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(content);
+        CRC32C crc = new CRC32C();
+        crc.update(content);
+        String sha256Hex = HexFormat.of().formatHex(sha256);
+        String crc32cHex = String.format("%08x", crc.getValue());
+
+        HttpResponse<byte[]> download = get("/download/" + id);
+        assertArrayEquals(content, download.body());
+        Base64.Encoder base64 = Base64.getEncoder();
+        assertEquals("sha-256=:" + base64.encodeToString(sha256) + ":, crc32c=:"
+                        + base64.encodeToString(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array()) + ":",
+                download.headers().firstValue("Repr-Digest").orElse(""));
+
+        String manifest = new String(get("/download/" + id + "/manifest").body(), StandardCharsets.UTF_8);
+        assertTrue(manifest.startsWith("{\"id\": \"" + id + "\", \"size\": 2500000, \"sha256\": \"" + sha256Hex
+                + "\", \"crc32c\": \"" + crc32cHex + "\""), manifest);
+        Matcher pieceSize = Pattern.compile("\"pieceSize\": (\\d+)").matcher(manifest);
+        assertTrue(pieceSize.find(), manifest);
+        int size = Integer.parseInt(pieceSize.group(1));
+        assertTrue(content.length > 2 * size, "spans several pieces, the last one short");
+        StringBuilder pieces = new StringBuilder("\"pieces\": [");
+        for (int start = 0; start < content.length; start += size) {
+            byte[] piece = Arrays.copyOfRange(content, start, Math.min(start + size, content.length));
+            CRC32C pieceCrc = new CRC32C();
+            pieceCrc.update(piece);
+            if (start > 0) pieces.append(", ");
+            pieces.append("{\"crc32c\": \"").append(String.format("%08x", pieceCrc.getValue()))
+                    .append("\", \"sha256\": \"")
+                    .append(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(piece))).append("\"}");
+        }
+        assertTrue(manifest.endsWith(pieces.append("]}").toString()), manifest);
+    }
+
+    @Test
+    public void onlyWholeBodiesGoThroughTheHotFileCache() throws Exception {
+        byte[] content = new byte[50_000];
+        new Random(13).nextBytes(content);
+        String id = upload("", "data.bin", "application/octet-stream", content);
+
+        assertArrayEquals(Arrays.copyOfRange(content, 10, 20), get("/download/" + id, "Range", "bytes=10-19").body());
+        assertEquals(206, get("/download/" + id, "Range", "bytes=0-9,100-109").statusCode());
+        assertEquals(416, get("/download/" + id, "Range", "bytes=50000-").statusCode());
+        assertEquals(0, metric("peerlink_hot_cache_misses_total"));
+        assertEquals(0, metric("peerlink_hot_cache_hits_total"));
+
+        assertArrayEquals(content, get("/download/" + id).body());
+        assertArrayEquals(content, get("/download/" + id).body());
+        assertEquals(1, metric("peerlink_hot_cache_misses_total"));
+        assertEquals(1, metric("peerlink_hot_cache_hits_total"));
+        // The miss loaded the file while there was room, so both bodies came from memory
+        assertEquals(2L * content.length, metric("peerlink_hot_cache_served_bytes_total"));
+    }
+
+    @Test
+    public void uploadsThatCannotFitTheQuotaAreRefusedBeforeAnythingIsEvicted(@TempDir Path otherUploadDir)
+            throws Exception {
+        FileController limited = new FileController(0, otherUploadDir, ExecutionConfig.fromEnvironment(),
+                new StorageConfig(0, 0, 10_000, 1000));
+        limited.start();
+        FileController defaultController = controller;
+        controller = limited;
+        try {
+            String small = upload("", "small.bin", "application/octet-stream", new byte[3000]);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            part(body, "big.bin", "application/octet-stream", new byte[20_000]);
+            body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            HttpResponse<String> big = client.send(HttpRequest.newBuilder(uri("/upload"))
+                    .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(507, big.statusCode());
+            assertEquals(200, get("/download/" + small).statusCode());
+
+            // One that fits once older shares make way evicts them first
+            String next = upload("", "next.bin", "application/octet-stream", new byte[8000]);
+            assertEquals(404, get("/download/" + small).statusCode());
+            assertEquals(200, get("/download/" + next).statusCode());
+        } finally {
+            controller = defaultController;
+            limited.stop();
+        }
+    }
+
+    @Test
+    public void poolAnswers503OnceItsQueueIsFull(@TempDir Path otherUploadDir) throws Exception {
+        // One worker and room for one more request in the queue
+        ExecutionConfig config = new ExecutionConfig(ExecutionConfig.Mode.POOL, 1, 0, 60_000, 16, 1);
+        FileController pool = new FileController(0, otherUploadDir, config);
+        pool.start();
+        try (Socket running = stalledUpload(pool.getPort()); Socket queued = stalledUpload(pool.getPort())) {
+            Thread.sleep(300); // let the dispatcher hand both to the executor
+
+            HttpResponse<String> rejected = client.send(HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + pool.getPort() + "/download/anything"))
+                    .timeout(Duration.ofSeconds(10)).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(503, rejected.statusCode());
+            assertEquals("1", rejected.headers().firstValue("Retry-After").orElse(""));
+            // Shedding left the running and queued requests alone
+            assertEquals(0, running.getInputStream().available());
+            assertEquals(0, queued.getInputStream().available());
+        } finally {
+            pool.stop();
+        }
+    }
+
+    /** Uploads one file and returns its share id. */
+    private String upload(String query, String filename, String contentType, byte[] content) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        part(body, filename, contentType, content);
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        HttpResponse<String> upload = client.send(HttpRequest.newBuilder(uri("/upload" + query))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, upload.statusCode(), upload.body());
+        Matcher matcher = FILE_ID.matcher(upload.body());
+        assertTrue(matcher.find(), upload.body());
+        return matcher.group(1);
+    }
+
+    /** A GET with the given header name/value pairs. */
+    private HttpResponse<byte[]> get(String path, String... headers) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri(path)).GET();
+        if (headers.length > 0) request.headers(headers);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /** The value of a counter on /metrics. */
+    private long metric(String name) throws Exception {
+        String text = new String(get("/metrics").body(), StandardCharsets.UTF_8);
+        Matcher matcher = Pattern.compile("(?m)^" + name + " (\\d+)").matcher(text);
+        assertTrue(matcher.find(), text);
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /** Starts an upload whose body never arrives, keeping a worker busy. */
+    private static Socket stalledUpload(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        OutputStream out = socket.getOutputStream();
+        out.write(("POST /upload HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+                + "Content-Length: 1000000\r\n\r\n--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return socket;
+    }
+
+    private static void assertEntry(ZipInputStream zip, String name, int method, byte[] content) throws IOException {
+        ZipEntry entry = zip.getNextEntry();
+        assertEquals(name, entry.getName());
+        assertEquals(method, entry.getMethod());
+        assertArrayEquals(content, zip.readAllBytes());
+    }
+
+    private static void assertPart(String part, String contentRange, byte[] content) {
+        int bodyStart = part.indexOf("\r\n\r\n") + 4;
+        assertTrue(part.substring(0, bodyStart).contains("Content-Range: " + contentRange + "\r\n"), part);
+        assertArrayEquals(content, part.substring(bodyStart).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void part(ByteArrayOutputStream body, String filename, String contentType, byte[] content)
+            throws IOException {
+        body.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(content);
+        body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + controller.getPort() + path);
+    }
+}
@@ -0,0 +1,52 @@
+package p2p.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void histogramQuantilesStayWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1000);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100_000, snapshot.getCount());
+        assertEquals(50_000L * 100_001 * 1000, snapshot.getSum());
+        // 32 sub-buckets per power of two: at most ~3% above the true value
+        for (double q : new double[] {0.5, 0.9, 0.99}) {
+            double expected = q * 100_000_000;
+            double actual = snapshot.quantile(q);
+            assertTrue(actual >= expected * 0.99 && actual <= expected * 1.04, q + " -> " + actual);
+        }
+    }
+
+    @Test
+    public void rendersPrometheusText() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("requests_total", "Requests", "handler", "upload").add(3);
+        registry.gauge("queue_depth", "Queued", () -> 7);
+        registry.histogram("latency_seconds", "Latency", 1e-9).record(2_000_000_000L);
+
+        StringBuilder text = new StringBuilder();
+        registry.writePrometheus(text);
+        String output = text.toString();
+        assertTrue(output.contains("# TYPE requests_total counter\nrequests_total{handler=\"upload\"} 3\n"), output);
+        assertTrue(output.contains("queue_depth 7\n"), output);
+        assertTrue(output.contains("latency_seconds_count 1\n"), output);
+        assertTrue(output.contains("latency_seconds{quantile=\"0.5\"} 2"), output);
+    }
+
+    @Test
+    public void rejectsDuplicatesAndTypeClashes() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("hits_total", "Hits", "code", "2xx");
+        registry.counter("hits_total", "Hits", "code", "4xx");
+        assertThrows(IllegalArgumentException.class, () -> registry.counter("hits_total", "Hits", "code", "2xx"));
+        assertThrows(IllegalArgumentException.class, () -> registry.gauge("hits_total", "Hits"));
+    }
+}
@@ -0,0 +1,225 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.config.StorageConfig;
+
+public class EvictionManagerTest {
+
+    private static final long START = 1_000_000;
+    private static final long TICK = 1000;
+
+    @TempDir
+    Path dir;
+
+    private final AtomicLong clock = new AtomicLong(START);
+    private FileRegistry registry;
+    private FileStore store;
+    private EvictionManager eviction;
+
+    private void open(long quota) throws IOException {
+        registry = new FileRegistry(dir);
+        store = new FileStore(dir);
+        eviction = new EvictionManager(registry, store, new StorageConfig(0, 0, quota, TICK), null, clock::get);
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        if (eviction != null) eviction.close();
+        if (registry != null) registry.close();
+    }
+
+    private SharedFile share(String id, byte[] content, long expiresAt, int maxDownloads) throws IOException {
+        FileStore.StoredObject stored = store.write(new ByteArrayInputStream(content));
+        SharedFile file = new SharedFile(id, stored.getPath(), id + ".bin", stored.getSize(), null, stored.getDigest(),
+                clock.get(), expiresAt, maxDownloads);
+        registry.put(file);
+        eviction.track(file);
+        return file;
+    }
+
+    private static byte[] content(int size, int seed) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) content[i] = (byte) (seed + i * 31);
+        return content;
+    }
+
+    @Test
+    public void sharesExpireOnSweepAndOnDownload() throws IOException {
+        open(0);
+        SharedFile swept = share("swept", content(100, 1), START + 5 * TICK, 0);
+        SharedFile downloaded = share("downloaded", content(100, 2), START + 50 * TICK, 0);
+        SharedFile kept = share("kept", content(100, 3), 0, 0);
+
+        clock.set(START + 5 * TICK - 1);
+        eviction.sweep();
+        assertNotNull(registry.get("swept"));
+
+        clock.set(START + 5 * TICK);
+        eviction.sweep();
+        assertNull(registry.get("swept"));
+        assertFalse(Files.exists(Path.of(swept.getPath())));
+
+        // Due, but the sweeper has not got to it yet
+        clock.set(START + 50 * TICK);
+        assertFalse(eviction.admitDownload(downloaded));
+        assertNull(registry.get("downloaded"));
+        assertFalse(Files.exists(Path.of(downloaded.getPath())));
+
+        assertTrue(eviction.admitDownload(kept));
+        assertEquals(2, eviction.getReclaimedEntries(EvictionManager.Reason.EXPIRED));
+        assertEquals(200, eviction.getReclaimedBytes());
+    }
+
+    @Test
+    public void theLastAllowedDownloadIsServedAndRemovesTheShare() throws IOException {
+        open(0);
+        SharedFile file = share("a", content(100, 1), 0, 3);
+
+        assertTrue(eviction.admitDownload(file));
+        assertTrue(eviction.admitDownload(file));
+        assertNotNull(registry.get("a"));
+        assertTrue(eviction.admitDownload(file));
+        assertNull(registry.get("a"));
+        assertFalse(Files.exists(Path.of(file.getPath())));
+        assertFalse(eviction.admitDownload(file));
+        assertEquals(1, eviction.getReclaimedEntries(EvictionManager.Reason.DOWNLOAD_LIMIT));
+    }
+
+    @Test
+    public void noDownloadCountOutlivesItsShare() throws IOException {
+        open(0);
+        SharedFile spent = share("spent", content(100, 1), 0, 1);
+        SharedFile swept = share("swept", content(100, 2), START + TICK, 2);
+        assertTrue(eviction.admitDownload(swept));
+        assertEquals(1, eviction.trackedDownloadCounts());
+
+        assertTrue(eviction.admitDownload(spent));
+        clock.set(START + TICK);
+        eviction.sweep();
+        assertEquals(0, eviction.trackedDownloadCounts());
+
+        // Requests still holding the removed shares leave no counter behind either
+        clock.set(START);
+        assertFalse(eviction.admitDownload(spent));
+        assertFalse(eviction.admitDownload(swept));
+        assertNull(eviction.admitDownloads(List.of(spent)));
+        assertEquals(0, eviction.trackedDownloadCounts());
+    }
+
+    @Test
+    public void concurrentDownloadsNeverExceedTheBudget() throws Exception {
+        open(0);
+        int budget = 5;
+        int requests = 32;
+        SharedFile file = share("a", content(100, 1), 0, budget);
+
+        ExecutorService pool = Executors.newFixedThreadPool(requests);
+        try {
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<Boolean>> admissions = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                admissions.add(pool.submit(() -> {
+                    go.await();
+                    return eviction.admitDownload(file);
+                }));
+            }
+            go.countDown();
+            int admitted = 0;
+            for (Future<Boolean> admission : admissions) {
+                if (admission.get()) admitted++;
+            }
+            assertEquals(budget, admitted);
+        } finally {
+            pool.shutdownNow();
+        }
+        assertNull(registry.get("a"));
+        assertEquals(1, eviction.getReclaimedEntries(EvictionManager.Reason.DOWNLOAD_LIMIT));
+    }
+
+    @Test
+    public void aBatchTakesEveryAllowanceOrNone() throws IOException {
+        open(0);
+        SharedFile a = share("a", content(100, 1), 0, 1);
+        SharedFile b = share("b", content(100, 2), 0, 1);
+        SharedFile unlimited = share("unlimited", content(100, 3), 0, 0);
+
+        List<SharedFile> spent = eviction.admitDownloads(List.of(b));
+        assertEquals(List.of(b), spent);
+        // Still there to be read until the caller is done with it
+        assertTrue(Files.exists(Path.of(b.getPath())));
+
+        assertNull(eviction.admitDownloads(List.of(a, unlimited, b)));
+        eviction.reclaimSpent(spent);
+        assertNull(registry.get("b"));
+        assertFalse(Files.exists(Path.of(b.getPath())));
+
+        // a got its allowance back
+        assertEquals(List.of(a), eviction.admitDownloads(List.of(unlimited, a)));
+    }
+
+    @Test
+    public void quotaEvictsTheLeastRecentlyDownloadedShareFirst() throws IOException {
+        open(300);
+        SharedFile a = share("a", content(100, 1), 0, 0);
+        share("b", content(100, 2), 0, 0);
+        share("c", content(100, 3), 0, 0);
+        assertTrue(eviction.admitDownload(a));
+
+        share("d", content(100, 4), 0, 0);
+
+        assertNull(registry.get("b"));
+        assertNotNull(registry.get("a"));
+        assertNotNull(registry.get("c"));
+        assertNotNull(registry.get("d"));
+        assertEquals(300, store.getStoredBytes());
+        assertEquals(1, eviction.getReclaimedEntries(EvictionManager.Reason.QUOTA));
+    }
+
+    @Test
+    public void contentStaysWhileAnotherShareReferencesIt() throws IOException {
+        open(250);
+        byte[] common = content(100, 1);
+        SharedFile expiring = share("expiring", common, START + TICK, 0);
+        SharedFile other = share("other", common, 0, 0);
+        assertEquals(100, store.getStoredBytes());
+
+        clock.set(START + TICK);
+        eviction.sweep();
+        assertNull(registry.get("expiring"));
+        assertTrue(Files.exists(Path.of(other.getPath())));
+        assertEquals(expiring.getPath(), other.getPath());
+        assertEquals(100, store.getStoredBytes());
+
+        // Evicting a second copy frees nothing, so the quota moves on to the next share
+        share("copy", common, 0, 0);
+        share("c", content(100, 2), 0, 0);
+        share("d", content(100, 3), 0, 0);
+        assertNull(registry.get("other"));
+        assertNull(registry.get("copy"));
+        assertFalse(Files.exists(Path.of(other.getPath())));
+        assertNotNull(registry.get("c"));
+        assertNotNull(registry.get("d"));
+        assertEquals(200, store.getStoredBytes());
+    }
+}
@@ -0,0 +1,70 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileRegistryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void entriesSurviveReopen() throws IOException {
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            registry.put(new SharedFile("a", "/tmp/a.txt", 10, "text/plain", "abc", 1L));
+            registry.put(new SharedFile("b", "/tmp/b.bin", 20, null, null, 2L));
+            registry.remove("a");
+        }
+
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            assertNull(registry.get("a"));
+            SharedFile b = registry.get("b");
+            assertEquals("/tmp/b.bin", b.getPath());
+            assertEquals(20, b.getSize());
+            assertEquals("application/octet-stream", b.getContentType());
+            assertEquals(2L, b.getCreatedAt());
+        }
+    }
+
+    @Test
+    public void tornTailIsDiscarded() throws IOException {
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            registry.put(new SharedFile("a", "/tmp/a.txt", 10, "text/plain", "", 1L));
+        }
+        // Simulate a crash in the middle of appending the next record
+        try (RandomAccessFile log = new RandomAccessFile(dir.resolve("registry.log").toFile(), "rw")) {
+            int firstRecordLength = log.readInt();
+            log.seek(4 + firstRecordLength);
+            log.write(new byte[] {0, 0, 0, 40, 1, 2});
+        }
+
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            assertEquals(1, registry.size());
+            registry.put(new SharedFile("b", "/tmp/b.txt", 5, "text/plain", "", 2L));
+        }
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            assertEquals(2, registry.size());
+        }
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveEntries() throws IOException {
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            for (int i = 0; i < 30_000; i++) {
+                registry.put(new SharedFile("id" + (i % 10), "/tmp/" + i, i, "text/plain", "", i));
+            }
+            assertEquals(10, registry.size());
+        }
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            assertEquals(10, registry.size());
+            assertEquals(29_999, registry.get("id9").getSize());
+        }
+    }
+}
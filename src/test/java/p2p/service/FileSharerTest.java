@@ -0,0 +1,56 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileSharerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void servesConcurrentDownloadsOfOneFileOverOnePort() throws Exception {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        Path source = dir.resolve("shared.bin");
+        Files.write(source, content);
+
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try (FileSharer sharer = new FileSharer()) {
+            sharer.start(0);
+            int code = sharer.offerFile(source.toString());
+
+            List<Future<Path>> downloads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Path target = Files.createDirectory(dir.resolve("peer" + i));
+                downloads.add(clients.submit(() -> FileReceiver.download("localhost", sharer.getPort(), code, target)));
+            }
+            for (Future<Path> download : downloads) {
+                assertArrayEquals(content, Files.readAllBytes(download.get()));
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void unknownCodeIsRejected() throws IOException {
+        try (FileSharer sharer = new FileSharer()) {
+            sharer.start(0);
+            assertThrows(IOException.class, () -> FileReceiver.download("localhost", sharer.getPort(), 1, dir));
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.config.StorageConfig;
+
+public class FileStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void identicalContentIsStoredOnce() throws IOException {
+        FileStore store = new FileStore(dir);
+        byte[] content = "same bytes".getBytes(StandardCharsets.UTF_8);
+
+        FileStore.StoredObject first = store.write(new ByteArrayInputStream(content));
+        FileStore.StoredObject second = store.write(new ByteArrayInputStream(content));
+
+        assertEquals(first.getPath(), second.getPath());
+        assertEquals(HexFormat.of().formatHex(FileStore.newDigest().digest(content)), first.getDigest());
+        assertEquals(content.length, store.getStoredBytes());
+        assertEquals(content.length, store.getDedupedBytes());
+        assertEquals(1, store.getObjectCount());
+        try (var files = Files.list(dir.resolve("objects"))) {
+            assertEquals(Set.of(first.getDigest(), first.getDigest() + ".manifest"),
+                    files.map(file -> file.getFileName().toString()).collect(Collectors.toSet()));
+        }
+
+        store.release(share("a", first));
+        assertTrue(Files.exists(Path.of(first.getPath())));
+        store.release(share("b", second));
+        assertFalse(Files.exists(Path.of(first.getPath())));
+        assertFalse(Files.exists(Path.of(first.getPath() + ".manifest")));
+        assertEquals(0, store.getStoredBytes());
+    }
+
+    @Test
+    public void loadCountsReferencesAndRemovesOrphans() throws IOException {
+        FileStore.StoredObject kept;
+        FileStore.StoredObject orphan;
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            FileStore store = new FileStore(dir);
+            kept = store.write(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+            store.write(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+            orphan = store.write(new ByteArrayInputStream(new byte[] {4, 5}));
+            registry.put(share("a", kept));
+            registry.put(share("b", kept));
+        }
+
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            FileStore store = new FileStore(dir);
+            store.load(registry);
+            assertFalse(Files.exists(Path.of(orphan.getPath())));
+            assertEquals(3, store.getStoredBytes());
+
+            store.release(registry.get("a"));
+            assertTrue(Files.exists(Path.of(kept.getPath())));
+            store.release(registry.get("b"));
+            assertFalse(Files.exists(Path.of(kept.getPath())));
+        }
+    }
+
+    @Test
+    public void variantsGoWithTheirObjectAcrossRestarts() throws IOException {
+        FileStore.StoredObject first;
+        FileStore.StoredObject second;
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            FileStore store = new FileStore(dir);
+            first = store.write(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+            second = store.write(new ByteArrayInputStream(new byte[] {4, 5}));
+            registry.put(share("a", first));
+            registry.put(share("b", second));
+            store.commitVariant(registry.get("a"), "gzip", Files.writeString(store.createTempFile(), "a"));
+            store.commitVariant(registry.get("b"), "br", Files.writeString(store.createTempFile(), "b"));
+
+            store.release(registry.get("a"));
+            assertFalse(Files.exists(Path.of(first.getPath() + ".gzip")));
+            assertFalse(Files.exists(Path.of(first.getPath() + ".manifest")));
+            registry.remove("a");
+        }
+
+        // A new store learns the suffixes in use from what it finds on disk
+        try (FileRegistry registry = new FileRegistry(dir)) {
+            FileStore store = new FileStore(dir);
+            store.load(registry);
+            store.release(registry.get("b"));
+            try (var files = Files.list(dir.resolve("objects"))) {
+                assertEquals(0, files.count());
+            }
+        }
+    }
+
+    @Test
+    public void chunkedUploadHashesChunksInAnyOrder() throws IOException {
+        FileStore store = new FileStore(dir);
+        UploadSessionManager sessions = new UploadSessionManager(dir.toString(), store, new StorageConfig(0, 0, 0, 1000));
+        int chunkSize = UploadSessionManager.MIN_CHUNK_SIZE;
+        byte[] content = new byte[chunkSize * 3 + 100];
+        new Random(7).nextBytes(content);
+
+        UploadSessionManager.UploadSession session = sessions.create("data.bin", null, content.length, chunkSize, 0, 0);
+        for (int index : new int[] {0, 2, 3, 1, 0}) {
+            int offset = index * chunkSize;
+            int length = (int) session.chunkLength(index);
+            session.writeChunk(index, new ByteArrayInputStream(content, offset, length));
+        }
+        FileStore.StoredObject stored = sessions.complete(session.getId());
+
+        assertEquals(HexFormat.of().formatHex(FileStore.newDigest().digest(content)), stored.getDigest());
+        assertArrayEquals(content, Files.readAllBytes(Path.of(stored.getPath())));
+    }
+
+    @Test
+    public void checksumsAreComputedWhileWritingAndKeptWithTheObject() throws IOException {
+        FileStore store = new FileStore(dir);
+        byte[] content = new byte[PieceManifest.DEFAULT_PIECE_SIZE * 2 + 1000];
+        new Random(3).nextBytes(content);
+
+        FileStore.StoredObject stored = store.write(new ByteArrayInputStream(content));
+        ContentManifest manifest = stored.getManifest();
+        CRC32C crc = new CRC32C();
+        crc.update(content);
+        assertEquals((int) crc.getValue(), manifest.getCrc32c());
+        assertEquals(stored.getDigest(), manifest.getSha256Hex());
+        assertEquals(3, manifest.getPieceCount());
+        crc.reset();
+        crc.update(content, 2 * PieceManifest.DEFAULT_PIECE_SIZE, 1000);
+        assertEquals((int) crc.getValue(), manifest.getPieceCrc32c(2));
+        assertArrayEquals(FileStore.newDigest().digest(Arrays.copyOf(content, PieceManifest.DEFAULT_PIECE_SIZE)),
+                manifest.getPieceSha256(0));
+
+        ContentManifest reread = store.manifest(share("a", stored));
+        assertEquals(manifest.getCrc32c(), reread.getCrc32c());
+        assertArrayEquals(manifest.getPieceSha256(2), reread.getPieceSha256(2));
+        assertEquals(manifest.getCrc32c() & 0xFFFFFFFFL, new FileStore(dir).contentCrc32c(share("a", stored)));
+    }
+
+    @Test
+    public void chunkNotMatchingItsChecksumIsRejected() throws IOException {
+        FileStore store = new FileStore(dir);
+        UploadSessionManager sessions = new UploadSessionManager(dir.toString(), store, new StorageConfig(0, 0, 0, 1000));
+        int chunkSize = UploadSessionManager.MIN_CHUNK_SIZE;
+        byte[] content = new byte[chunkSize * 2];
+        new Random(9).nextBytes(content);
+        CRC32C crc = new CRC32C();
+        crc.update(content, chunkSize, chunkSize);
+        byte[] secondCrc = ByteBuffer.allocate(4).putInt((int) crc.getValue()).array();
+
+        UploadSessionManager.UploadSession session = sessions.create("data.bin", null, content.length, chunkSize, 0, 0);
+        session.writeChunk(0, new ByteArrayInputStream(content, 0, chunkSize));
+        session.writeChunk(1, new ByteArrayInputStream(content, chunkSize, chunkSize), secondCrc, null);
+        byte[] corrupted = Arrays.copyOfRange(content, chunkSize, chunkSize * 2);
+        corrupted[100] ^= 1;
+        // A bad resend replaces the good copy on disk, so the chunk has to count as missing again
+        assertThrows(IllegalArgumentException.class,
+                () -> session.writeChunk(1, new ByteArrayInputStream(corrupted), secondCrc, null));
+        assertFalse(session.hasChunk(1));
+        assertThrows(IllegalStateException.class, () -> sessions.complete(session.getId()));
+
+        session.writeChunk(1, new ByteArrayInputStream(content, chunkSize, chunkSize), secondCrc, null);
+        FileStore.StoredObject stored = sessions.complete(session.getId());
+        assertEquals(HexFormat.of().formatHex(FileStore.newDigest().digest(content)), stored.getDigest());
+        assertEquals(chunkSize, stored.getManifest().getPieceSize());
+        assertEquals((int) crc.getValue(), stored.getManifest().getPieceCrc32c(1));
+    }
+
+    private static SharedFile share(String id, FileStore.StoredObject stored) {
+        return new SharedFile(id, stored.getPath(), "file", stored.getSize(), null, stored.getDigest(), 0, 0, 0);
+    }
+}
@@ -0,0 +1,73 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HotFileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void servesContentsFromMemoryAfterTheFirstLoad() throws IOException {
+        HotFileCache cache = new HotFileCache(64 * 1024, 16 * 1024);
+        SharedFile file = file("a", 10_000);
+
+        ByteBuffer first = get(cache, file);
+        ByteBuffer second = get(cache, file);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(ByteBuffer.wrap(Files.readAllBytes(Path.of(file.getPath()))), second);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(10_000, cache.getUsedBytes());
+
+        assertNull(get(cache, file("big", 20_000)), "files over the entry limit are never cached");
+    }
+
+    @Test
+    public void keepsPopularFilesWhenARarelyRequestedOneArrives() throws IOException {
+        HotFileCache cache = new HotFileCache(3 * 4096, 4096);
+        SharedFile[] popular = {file("p1", 4096), file("p2", 4096), file("p3", 4096)};
+        for (int round = 0; round < 4; round++) {
+            for (SharedFile file : popular) get(cache, file);
+        }
+
+        SharedFile oneOff = file("once", 4096);
+        assertNull(get(cache, oneOff));
+        assertEquals(1, cache.getRejections());
+        assertEquals(3, cache.getEntryCount());
+
+        // Once it is asked for more often than the least recently used entry, it gets in
+        ByteBuffer admitted = null;
+        for (int i = 0; i < 6 && admitted == null; i++) admitted = get(cache, oneOff);
+        assertNotNull(admitted);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3 * 4096, cache.getUsedBytes());
+    }
+
+    private ByteBuffer get(HotFileCache cache, SharedFile file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(file.getPath()), StandardOpenOption.READ)) {
+            return cache.get(file, channel);
+        }
+    }
+
+    private SharedFile file(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) name.hashCode());
+        Path path = Files.write(dir.resolve(name), content);
+        return new SharedFile(name, path.toString(), size, "application/octet-stream", "", System.currentTimeMillis());
+    }
+}
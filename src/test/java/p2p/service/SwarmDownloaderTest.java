@@ -0,0 +1,102 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.config.TransferConfig;
+import p2p.metrics.MetricsRegistry;
+import p2p.utils.ShareCodeAllocator;
+
+public class SwarmDownloaderTest {
+
+    private static final long PEER_BYTES_PER_SECOND = 8L * 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void throughputGrowsWithTheNumberOfPeers() throws Exception {
+        byte[] content = randomBytes(8 * 1024 * 1024 + 123, 1);
+        Path source = Files.write(dir.resolve("video.bin"), content);
+        List<FileSharer> seeds = new ArrayList<>();
+        try {
+            // Every seed is limited to the same uplink, as separate machines would be
+            int code = seed(seeds, source, -1);
+            for (int i = 1; i < 4; i++) seed(seeds, source, code);
+
+            long start = System.nanoTime();
+            Path alone = new SwarmDownloader(addresses(seeds.subList(0, 1)), code).download(Files.createDirectory(dir.resolve("one")));
+            long oneMillis = (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            Path together = new SwarmDownloader(addresses(seeds), code).download(Files.createDirectory(dir.resolve("four")));
+            long fourMillis = (System.nanoTime() - start) / 1_000_000;
+
+            assertArrayEquals(content, Files.readAllBytes(alone));
+            assertArrayEquals(content, Files.readAllBytes(together));
+            assertTrue(fourMillis * 2 < oneMillis, "1 peer: " + oneMillis + " ms, 4 peers: " + fourMillis + " ms");
+        } finally {
+            seeds.forEach(FileSharer::close);
+        }
+    }
+
+    @Test
+    public void downloaderReseedsPiecesAndSurvivesACorruptPeer() throws Exception {
+        byte[] content = randomBytes(3 * 1024 * 1024 + 7, 2);
+        Path source = Files.write(dir.resolve("doc.pdf"), content);
+        Path corrupt = Files.write(dir.resolve("corrupt.pdf"), randomBytes(content.length, 3));
+        try (FileSharer liar = new FileSharer(); FileSharer first = new FileSharer()) {
+            liar.start(0);
+            first.start(0);
+            int code;
+            try (FileSharer origin = new FileSharer()) {
+                origin.start(0);
+                code = origin.offerFile(source.toString());
+                PieceManifest manifest = PieceManifest.compute(source, PieceManifest.DEFAULT_PIECE_SIZE);
+                liar.offerPieces(code, corrupt, "doc.pdf", "", manifest, null);
+
+                Path downloaded = new SwarmDownloader(addresses(List.of(origin, liar)), code)
+                        .reseedVia(first)
+                        .download(Files.createDirectory(dir.resolve("first")));
+                assertArrayEquals(content, Files.readAllBytes(downloaded));
+            }
+
+            // The origin is gone; the first downloader now serves the share on its own
+            Path second = new SwarmDownloader(addresses(List.of(first)), code).download(Files.createDirectory(dir.resolve("second")));
+            assertArrayEquals(content, Files.readAllBytes(second));
+        }
+    }
+
+    private static int seed(List<FileSharer> seeds, Path source, int code) throws Exception {
+        FileSharer sharer = new FileSharer(new ShareCodeAllocator(), new MetricsRegistry(),
+                new TransferScheduler(new TransferConfig(PEER_BYTES_PER_SECOND, 0, 0)));
+        seeds.add(sharer);
+        sharer.start(0);
+        if (code < 0) return sharer.offerFile(source.toString());
+        sharer.offerPieces(code, source, source.getFileName().toString(), "",
+                PieceManifest.compute(source, PieceManifest.DEFAULT_PIECE_SIZE), null);
+        return code;
+    }
+
+    private static List<InetSocketAddress> addresses(List<FileSharer> sharers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (FileSharer sharer : sharers) addresses.add(new InetSocketAddress("localhost", sharer.getPort()));
+        return addresses;
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
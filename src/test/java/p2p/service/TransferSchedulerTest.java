@@ -0,0 +1,95 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.jupiter.api.Test;
+
+import p2p.config.TransferConfig;
+
+public class TransferSchedulerTest {
+
+    private static final int CHUNK = 16 * 1024;
+
+    @Test
+    public void withoutLimitsNothingIsShaped() {
+        try (TransferScheduler scheduler = new TransferScheduler(new TransferConfig(0, 0, 1024))) {
+            assertFalse(scheduler.isShaping());
+            assertEquals(Long.MAX_VALUE, scheduler.open("a", 10).allowance());
+        }
+    }
+
+    @Test
+    public void smallTransferOvertakesALargeOneWithinTheGlobalLimit() throws Exception {
+        long rate = 2 * 1024 * 1024;
+        try (TransferScheduler scheduler = new TransferScheduler(new TransferConfig(rate, 0, 512 * 1024))) {
+            AtomicLong large = new AtomicLong();
+            Thread sender = send(scheduler, "big", Long.MAX_VALUE, large);
+            Thread.sleep(300);
+
+            long start = System.nanoTime();
+            sendFully(scheduler.open("small", 256 * 1024), 256 * 1024);
+            long smallMillis = (System.nanoTime() - start) / 1_000_000;
+
+            Thread.sleep(700);
+            sender.interrupt();
+            sender.join();
+            long elapsedMillis = 1000 + smallMillis;
+
+            // Alone the small file would take 125 ms; sharing 4:1 it takes about 160 ms
+            assertTrue(smallMillis < 600, "small transfer took " + smallMillis + " ms");
+            long allowed = rate * elapsedMillis / 1000 + rate / 10;
+            assertTrue(large.get() + 256 * 1024 <= allowed, "sent " + large.get() + " bytes, limit " + allowed);
+            assertTrue(large.get() >= rate / 2, "only sent " + large.get() + " bytes");
+        }
+    }
+
+    @Test
+    public void equalTransfersGetEqualShares() throws Exception {
+        try (TransferScheduler scheduler = new TransferScheduler(new TransferConfig(1024 * 1024, 0, 0))) {
+            AtomicLong first = new AtomicLong();
+            AtomicLong second = new AtomicLong();
+            Thread a = send(scheduler, "a", Long.MAX_VALUE, first);
+            Thread b = send(scheduler, "b", Long.MAX_VALUE, second);
+            Thread.sleep(1000);
+            a.interrupt();
+            b.interrupt();
+            a.join();
+            b.join();
+
+            double ratio = (double) first.get() / second.get();
+            assertTrue(ratio > 0.6 && ratio < 1.6, first.get() + " vs " + second.get());
+        }
+    }
+
+    private static Thread send(TransferScheduler scheduler, String client, long size, AtomicLong sent) {
+        Thread thread = new Thread(() -> {
+            byte[] chunk = new byte[CHUNK];
+            try (OutputStream out = scheduler.open(client, size).shape(NullOutputStream.INSTANCE)) {
+                while (true) {
+                    out.write(chunk);
+                    sent.addAndGet(chunk.length);
+                }
+            } catch (IOException e) {
+                // interrupted
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void sendFully(TransferScheduler.Transfer transfer, int size) throws IOException {
+        byte[] chunk = new byte[CHUNK];
+        try (OutputStream out = transfer.shape(NullOutputStream.INSTANCE)) {
+            for (int sent = 0; sent < size; sent += CHUNK) {
+                out.write(chunk);
+            }
+        }
+    }
+}
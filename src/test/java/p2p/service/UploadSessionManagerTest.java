@@ -0,0 +1,166 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.config.StorageConfig;
+
+public class UploadSessionManagerTest {
+
+    private static final int CHUNK = UploadSessionManager.MIN_CHUNK_SIZE;
+
+    @TempDir
+    Path dir;
+
+    private UploadSessionManager sessions(FileStore store, long quota, long maxSessionBytes, long idleMillis) {
+        return new UploadSessionManager(dir.toString(), store,
+                new StorageConfig(0, 0, quota, 1000, 0, 0, maxSessionBytes, idleMillis));
+    }
+
+    @Test
+    public void sessionsLargerThanTheCapOrTheQuotaAreRefused() throws IOException {
+        FileStore store = new FileStore(dir);
+        UploadSessionManager sessions = sessions(store, 5L * CHUNK, 4L * CHUNK, 60_000);
+
+        assertThrows(IllegalArgumentException.class, () -> sessions.create("big.bin", null, 4L * CHUNK + 1, CHUNK, 0, 0));
+
+        UploadSessionManager.UploadSession first = sessions.create("a.bin", null, 3L * CHUNK, CHUNK, 0, 0);
+        assertEquals(3L * CHUNK, sessions.getReservedBytes());
+        // Preallocated but unwritten space counts, so a second session does not fit
+        assertThrows(UploadSessionManager.InsufficientStorageException.class,
+                () -> sessions.create("b.bin", null, 3L * CHUNK, CHUNK, 0, 0));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.filter(path -> path.toString().endsWith(".part")).count());
+        }
+
+        sessions.abort(first.getId());
+        assertEquals(0, sessions.getReservedBytes());
+        sessions.create("b.bin", null, 3L * CHUNK, CHUNK, 0, 0);
+    }
+
+    @Test
+    public void idleSessionsAreDroppedWithTheirFiles() throws IOException {
+        UploadSessionManager sessions = sessions(new FileStore(dir), 0, Long.MAX_VALUE, 1000);
+        UploadSessionManager.UploadSession session = sessions.create("a.bin", null, 2L * CHUNK, CHUNK, 0, 0);
+        session.writeChunk(0, new ByteArrayInputStream(new byte[CHUNK]));
+        long lastActivity = session.getLastActivity();
+
+        assertEquals(0, sessions.reapIdle(lastActivity + 999));
+        assertEquals(1, sessions.reapIdle(lastActivity + 1000));
+
+        assertNull(sessions.get(session.getId()));
+        assertEquals(0, sessions.getReservedBytes());
+        assertFalse(Files.exists(dir.resolve(session.getId() + ".part")));
+        assertThrows(IllegalStateException.class, () -> session.writeChunk(1, new ByteArrayInputStream(new byte[CHUNK])));
+    }
+
+    @Test
+    public void aFailedResendCountsTheChunkAsMissing() throws IOException {
+        UploadSessionManager sessions = sessions(new FileStore(dir), 0, Long.MAX_VALUE, 60_000);
+        byte[] content = new byte[2 * CHUNK];
+        new Random(12).nextBytes(content);
+        UploadSessionManager.UploadSession session = sessions.create("a.bin", null, content.length, CHUNK, 0, 0);
+        session.writeChunk(0, new ByteArrayInputStream(content, 0, CHUNK));
+        session.writeChunk(1, new ByteArrayInputStream(content, CHUNK, CHUNK));
+
+        // Half a chunk of other bytes lands on disk before the length check fails
+        byte[] shortResend = new byte[CHUNK / 2];
+        new Random(13).nextBytes(shortResend);
+        assertThrows(IllegalArgumentException.class, () -> session.writeChunk(0, new ByteArrayInputStream(shortResend)));
+        assertFalse(session.hasChunk(0));
+        assertThrows(IllegalStateException.class, () -> sessions.complete(session.getId()));
+
+        session.writeChunk(0, new ByteArrayInputStream(content, 0, CHUNK));
+        FileStore.StoredObject stored = sessions.complete(session.getId());
+        assertEquals(HexFormat.of().formatHex(FileStore.newDigest().digest(content)), stored.getDigest());
+        assertArrayEquals(content, Files.readAllBytes(Path.of(stored.getPath())));
+        assertArrayEquals(FileStore.newDigest().digest(Arrays.copyOf(content, CHUNK)), stored.getManifest().getPieceSha256(0));
+    }
+
+    @Test
+    public void filesOfSessionsFromAnEarlierRunAreRemoved() throws IOException {
+        UploadSessionManager before = sessions(new FileStore(dir), 0, Long.MAX_VALUE, 60_000);
+        UploadSessionManager.UploadSession session = before.create("a.bin", null, 2L * CHUNK, CHUNK, 0, 0);
+        session.writeChunk(0, new ByteArrayInputStream(new byte[CHUNK]));
+        Path kept = Files.writeString(dir.resolve("notes.txt"), "not a session");
+
+        // A restart: the new manager knows nothing of the session
+        UploadSessionManager after = sessions(new FileStore(dir), 0, Long.MAX_VALUE, 60_000);
+        after.removeAbandoned();
+        assertFalse(Files.exists(dir.resolve(session.getId() + ".part")));
+        assertTrue(Files.exists(kept));
+    }
+
+    @Test
+    public void completeWaitsForAChunkBeingWritten() throws Exception {
+        UploadSessionManager sessions = sessions(new FileStore(dir), 0, Long.MAX_VALUE, 60_000);
+        byte[] content = new byte[2 * CHUNK];
+        new Random(11).nextBytes(content);
+        UploadSessionManager.UploadSession session = sessions.create("a.bin", null, content.length, CHUNK, 0, 0);
+        session.writeChunk(0, new ByteArrayInputStream(content, 0, CHUNK));
+        session.writeChunk(1, new ByteArrayInputStream(content, CHUNK, CHUNK));
+
+        // Resend chunk 0, stalling halfway through
+        CountDownLatch halfway = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        InputStream stalled = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                halfway.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+        };
+        InputStream resend = new SequenceInputStream(new ByteArrayInputStream(content, 0, CHUNK / 2),
+                new SequenceInputStream(stalled, new ByteArrayInputStream(content, CHUNK / 2, CHUNK / 2)));
+        CompletableFuture<Void> write = CompletableFuture.runAsync(() -> {
+            try {
+                session.writeChunk(0, resend);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        halfway.await();
+
+        CompletableFuture<FileStore.StoredObject> complete = CompletableFuture.supplyAsync(() -> {
+            try {
+                return sessions.complete(session.getId());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> complete.get(200, TimeUnit.MILLISECONDS));
+
+        resume.countDown();
+        write.get(5, TimeUnit.SECONDS);
+        FileStore.StoredObject stored = complete.get(5, TimeUnit.SECONDS);
+        assertEquals(HexFormat.of().formatHex(FileStore.newDigest().digest(content)), stored.getDigest());
+        assertThrows(IllegalStateException.class, () -> session.writeChunk(0, new ByteArrayInputStream(content, 0, CHUNK)));
+    }
+}
@@ -0,0 +1,61 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class CompressionTest {
+
+    @Test
+    public void negotiatesByQualityAndServerOrder() {
+        assertSame(Compression.GZIP, Compression.negotiate("gzip, deflate, br", Compression.DEFAULT_CODECS));
+        assertSame(Compression.DEFLATE, Compression.negotiate("gzip;q=0.5, deflate", Compression.DEFAULT_CODECS));
+        assertSame(Compression.GZIP, Compression.negotiate("*", Compression.DEFAULT_CODECS));
+        assertSame(Compression.DEFLATE, Compression.negotiate("gzip;q=0, *;q=0.1", Compression.DEFAULT_CODECS));
+        assertNull(Compression.negotiate("br, identity", Compression.DEFAULT_CODECS));
+        assertNull(Compression.negotiate(null, Compression.DEFAULT_CODECS));
+    }
+
+    @Test
+    public void skipsAlreadyCompressedTypes() {
+        assertTrue(Compression.isCompressible("text/plain; charset=utf-8", "notes.txt"));
+        assertTrue(Compression.isCompressible("application/vnd.api+json", "x"));
+        assertTrue(Compression.isCompressible("application/octet-stream", "server.LOG"));
+        assertFalse(Compression.isCompressible("application/octet-stream", "photo.bin"));
+        assertFalse(Compression.isCompressible("image/jpeg", "photo.txt"));
+        assertFalse(Compression.isCompressible("application/zip", "logs.zip"));
+        assertFalse(Compression.isCompressible("video/mp4", "clip.mp4"));
+    }
+
+    @Test
+    public void codecsRoundTrip() throws IOException {
+        byte[] text = "line of a log file\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (OutputStream out = Compression.GZIP.encode(gzip)) {
+            out.write(text);
+        }
+        assertEquals(new String(text, StandardCharsets.UTF_8), new String(
+                new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray())).readAllBytes(), StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+        try (OutputStream out = Compression.DEFLATE.encode(deflate)) {
+            out.write(text);
+        }
+        assertEquals(new String(text, StandardCharsets.UTF_8), new String(
+                new InflaterInputStream(new ByteArrayInputStream(deflate.toByteArray())).readAllBytes(), StandardCharsets.UTF_8));
+        assertTrue(deflate.size() < text.length / 10);
+    }
+}
@@ -0,0 +1,28 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class ContentDispositionTest {
+
+    @Test
+    public void plainNamesAreSentAsTheyAre() {
+        assertEquals("attachment; filename=\"photo.jpg\"; filename*=UTF-8''photo.jpg",
+                ContentDisposition.attachment("photo.jpg"));
+    }
+
+    @Test
+    public void quotesAndBackslashesCannotEndTheQuotedName() {
+        assertEquals("attachment; filename=\"a_; x=_y_.txt\"; filename*=UTF-8''a%22%3B%20x%3D%5Cy%22.txt",
+                ContentDisposition.attachment("a\"; x=\\y\".txt"));
+        assertEquals("attachment; filename=\"evil__Set-Cookie: x\"; filename*=UTF-8''evil%0D%0ASet-Cookie%3A%20x",
+                ContentDisposition.attachment("evil\r\nSet-Cookie: x"));
+    }
+
+    @Test
+    public void nonAsciiNamesAreKeptInTheExtendedParameter() {
+        assertEquals("attachment; filename=\"r_sum_ 100_.pdf\"; filename*=UTF-8''r%C3%A9sum%C3%A9%20100%25.pdf",
+                ContentDisposition.attachment("résumé 100%.pdf"));
+    }
+}
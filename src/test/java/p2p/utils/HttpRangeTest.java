@@ -0,0 +1,46 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class HttpRangeTest {
+
+    @Test
+    public void parsesOpenClosedAndSuffixRanges() {
+        List<HttpRange> ranges = HttpRange.parse("bytes=0-99, 500-, -10", 1000);
+        assertEquals(2, ranges.size()); // 500- and -10 overlap and are merged
+        assertEquals("bytes 0-99/1000", ranges.get(0).contentRange(1000));
+        assertEquals("bytes 500-999/1000", ranges.get(1).contentRange(1000));
+    }
+
+    @Test
+    public void clampsEndAndMergesAdjacentRanges() {
+        List<HttpRange> ranges = HttpRange.parse("bytes=10-19,20-5000", 100);
+        assertEquals(1, ranges.size());
+        assertEquals(10, ranges.get(0).getStart());
+        assertEquals(99, ranges.get(0).getEnd());
+    }
+
+    @Test
+    public void distinguishesUnsatisfiableFromMalformed() {
+        assertTrue(HttpRange.parse("bytes=1000-", 1000).isEmpty());
+        assertNull(HttpRange.parse("bytes=5-1", 1000));
+        assertNull(HttpRange.parse("items=0-1", 1000));
+        assertNull(HttpRange.parse("bytes=abc", 1000));
+    }
+
+    @Test
+    public void ifRangeRequiresExactValidator() {
+        String etag = "\"3e8-18b\"";
+        assertTrue(HttpRange.ifRangeMatches(null, etag, 0));
+        assertTrue(HttpRange.ifRangeMatches(etag, etag, 0));
+        assertEquals(false, HttpRange.ifRangeMatches("\"other\"", etag, 0));
+        long lastModified = 1_700_000_000_000L;
+        assertTrue(HttpRange.ifRangeMatches(HttpRange.httpDate(lastModified), etag, lastModified));
+    }
+}
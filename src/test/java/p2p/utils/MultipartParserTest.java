@@ -0,0 +1,125 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MultipartParserTest {
+
+    private static final String BOUNDARY = "----PeerLinkBoundary7MA4YWxkTrZu0gW";
+
+    @Test
+    public void parsesMultipleFilePartsAcrossBufferRefills() throws IOException {
+        byte[] first = randomBytes(100_000, 1);
+        byte[] second = randomBytes(33_333, 2);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("preamble\r\n".getBytes(StandardCharsets.US_ASCII));
+        writePart(body, "form-data; name=\"note\"", null, "hello".getBytes(StandardCharsets.US_ASCII));
+        writePart(body, "form-data; name=\"file\"; filename=\"a.bin\"", "application/octet-stream", first);
+        writePart(body, "form-data; name=\"file\"; filename=\"b.txt\"", "text/plain", second);
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        List<String> names = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body.toByteArray()), BOUNDARY, 8 * 1024);
+        int parts = parser.parse((part, content) -> {
+            if (!part.isFile()) return; // left unread on purpose
+            names.add(part.getFilename() + "|" + part.getContentType());
+            contents.add(content.readAllBytes());
+        });
+
+        assertEquals(3, parts);
+        assertEquals(List.of("a.bin|application/octet-stream", "b.txt|text/plain"), names);
+        assertArrayEquals(first, contents.get(0));
+        assertArrayEquals(second, contents.get(1));
+    }
+
+    @Test
+    public void parsesHeadersWithoutCaringAboutCaseOrQuotedSemicolons() throws IOException {
+        byte[] content = randomBytes(50_000, 4);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(("content-DISPOSITION:form-data; NAME=upload;  filename=\"r\u00e9sum\u00e9; v2.pdf\"\r\n"
+                + "Content-Type:  application/pdf \r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        // Hand the parser a few bytes at a time so delimiters straddle reads
+        InputStream trickle = new ByteArrayInputStream(body.toByteArray()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        List<String> headers = new ArrayList<>();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        new MultipartParser(trickle, BOUNDARY, 8 * 1024).parse((part, in) -> {
+            headers.add(part.getName() + "|" + part.getFilename() + "|" + part.getContentType());
+            byte[] chunk = new byte[13];
+            int n;
+            while ((n = in.read(chunk, 0, chunk.length)) != -1) received.write(chunk, 0, n);
+        });
+
+        assertEquals(List.of("upload|r\u00e9sum\u00e9; v2.pdf|application/pdf"), headers);
+        assertArrayEquals(content, received.toByteArray());
+    }
+
+    @Test
+    public void findsSequenceAtEveryPosition() {
+        byte[] data = randomBytes(4096, 5);
+        byte[] pattern = ("\r\n--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII);
+        assertEquals(-1, MultipartParser.findSequence(data, 0, data.length, pattern));
+        for (int at : new int[] {0, 1, 1000, data.length - pattern.length}) {
+            byte[] copy = data.clone();
+            System.arraycopy(pattern, 0, copy, at, pattern.length);
+            assertEquals(at, MultipartParser.findSequence(copy, 0, copy.length, pattern));
+            assertEquals(-1, MultipartParser.findSequence(copy, 0, at + pattern.length - 1, pattern));
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedBody() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write("Content-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        body.write(randomBytes(20_000, 3));
+
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body.toByteArray()), BOUNDARY, 8 * 1024);
+        assertThrows(IOException.class, () -> parser.parse((part, content) -> content.readAllBytes()));
+    }
+
+    @Test
+    public void extractsQuotedBoundary() {
+        assertEquals("abc", MultipartParser.extractBoundary("multipart/form-data; boundary=\"abc\"; charset=utf-8"));
+        assertEquals("xyz", MultipartParser.extractBoundary("multipart/form-data; boundary=xyz"));
+    }
+
+    private static void writePart(ByteArrayOutputStream body, String disposition, String contentType, byte[] content)
+            throws IOException {
+        StringBuilder headers = new StringBuilder("--" + BOUNDARY + "\r\n");
+        headers.append("Content-Disposition: ").append(disposition).append("\r\n");
+        if (contentType != null) headers.append("Content-Type: ").append(contentType).append("\r\n");
+        headers.append("\r\n");
+        body.write(headers.toString().getBytes(StandardCharsets.US_ASCII));
+        body.write(content);
+        body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,72 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class ShareCodeAllocatorTest {
+
+    @Test
+    public void handsOutEveryCodeOnceThenRunsDry() {
+        ShareCodeAllocator allocator = new ShareCodeAllocator(100, 199);
+        Set<Integer> seen = new HashSet<>();
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int code = allocator.allocate();
+            assertTrue(code >= 100 && code <= 199);
+            assertTrue(seen.add(code));
+            order.add(code);
+        }
+        assertEquals(-1, allocator.allocate());
+        assertFalse(order.equals(new ArrayList<>(new TreeSet<>(order))), "codes should not come out in order");
+
+        int code = order.get(0);
+        assertTrue(allocator.release(code));
+        assertFalse(allocator.release(code));
+        assertFalse(allocator.release(500));
+        assertEquals(code, allocator.allocate());
+    }
+
+    @Test
+    public void concurrentAllocationsNeverCollide() throws Exception {
+        ShareCodeAllocator allocator = new ShareCodeAllocator(0, 9_999);
+        Set<Integer> live = ConcurrentHashMap.newKeySet();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                workers.add(threads.submit(() -> {
+                    List<Integer> mine = new ArrayList<>();
+                    for (int i = 0; i < 50_000; i++) {
+                        if (mine.size() < 1000) {
+                            int code = allocator.allocate();
+                            assertTrue(code >= 0 && live.add(code), "code handed out twice: " + code);
+                            mine.add(code);
+                        } else {
+                            int code = mine.remove(mine.size() - 1);
+                            live.remove(code);
+                            assertTrue(allocator.release(code));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(10_000 - live.size(), allocator.available());
+    }
+}
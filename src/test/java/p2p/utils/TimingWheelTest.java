@@ -0,0 +1,54 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class TimingWheelTest {
+
+    @Test
+    public void firesEachItemOnItsTickAcrossAllLevels() {
+        TimingWheel<Long> wheel = new TimingWheel<>(1, 0);
+        Random random = new Random(7);
+        List<Long> deadlines = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            long deadline = 1 + (long) (Math.pow(random.nextDouble(), 3) * 300_000_000L);
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+        deadlines.add(512L * 512);        // exactly on a level boundary
+        wheel.schedule(512L * 512, 512L * 512);
+
+        List<Long> late = new ArrayList<>();
+        int[] fired = {0};
+        long now = 0;
+        while (now < 300_000_000L) {
+            now += 1 + random.nextInt(200_000);
+            long at = now;
+            wheel.advance(at, deadline -> {
+                fired[0]++;
+                // Every item must fire in the first advance() that passes its deadline
+                if (deadline > at || deadline <= at - 200_001) late.add(deadline);
+            });
+        }
+        wheel.advance(300_000_001L, deadline -> fired[0]++);
+
+        assertTrue(late.isEmpty(), "fired outside their window: " + late);
+        assertEquals(deadlines.size(), fired[0]);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pastDeadlineFiresOnNextAdvance() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 10_000);
+        wheel.schedule("old", 5_000);
+        List<String> fired = new ArrayList<>();
+        wheel.advance(11_000, fired::add);
+        assertEquals(List.of("old"), fired);
+    }
+}
@@ -0,0 +1,80 @@
+package p2p.config;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.springframework.boot.Banner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+import org.springframework.http.server.reactive.HttpHandler;
+import org.springframework.web.reactive.config.EnableWebFlux;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.adapter.WebHttpHandlerBuilder;
+
+import p2p.controller.FileController;
+import p2p.controller.ReactiveFileController;
+
+/**
+ * The WebFlux server mode ({@code PEERLINK_SERVER=webflux}):
+ * {@link ReactiveFileController} on Reactor Netty, with the CORS rules of
+ * {@link WebConfig}. The context holds only these beans - no
+ * auto-configuration or component scan - to keep startup and footprint
+ * close to the HttpServer mode.
+ *
+ * Compiled only with {@code -Pwebflux}, which also adds WebFlux and Reactor
+ * Netty to the build; {@link p2p.App} finds this class by name.
+ */
+@Configuration(proxyBeanMethods = false)
+@EnableWebFlux
+@Import(ReactiveWebConfig.class)
+public class ReactiveServerConfig {
+
+    private static final String UPLOAD_DIR_PROPERTY = "peerlink.upload-dir";
+
+    /** Starts the server on {@code port} (0 for any free port); closing the context stops it. */
+    public static ConfigurableApplicationContext start(int port) {
+        return start(port, FileController.defaultUploadDirectory());
+    }
+
+    /**
+     * As {@link #start(int)}, keeping shares in {@code uploadDir}. Both are
+     * passed as command-line properties, which outrank the
+     * {@code server.port=${PORT:8080}} in application.properties.
+     */
+    public static ConfigurableApplicationContext start(int port, Path uploadDir) {
+        SpringApplication application = new SpringApplication(ReactiveServerConfig.class);
+        application.setWebApplicationType(WebApplicationType.REACTIVE);
+        application.setBannerMode(Banner.Mode.OFF);
+        return application.run("--server.port=" + port, "--" + UPLOAD_DIR_PROPERTY + "=" + uploadDir);
+    }
+
+    @Bean
+    public NettyReactiveWebServerFactory webServerFactory(Environment environment) {
+        return new NettyReactiveWebServerFactory(environment.getProperty("server.port", Integer.class, 8080));
+    }
+
+    /** Netty's entry point: the DispatcherHandler that {@code @EnableWebFlux} registers, with its filters and codecs. */
+    @Bean
+    public HttpHandler httpHandler(ApplicationContext context) {
+        return WebHttpHandlerBuilder.applicationContext(context).build();
+    }
+
+    @Bean
+    public ReactiveFileController fileController(Environment environment) throws IOException {
+        Path uploadDir = Path.of(environment.getRequiredProperty(UPLOAD_DIR_PROPERTY));
+        return new ReactiveFileController(uploadDir, StorageConfig.fromEnvironment());
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> routes(ReactiveFileController fileController) {
+        return fileController.routes();
+    }
+}
@@ -0,0 +1,19 @@
+package p2p.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.config.CorsRegistry;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+/** The CORS rules of {@link WebConfig} for the WebFlux server mode. */
+@Configuration
+public class ReactiveWebConfig implements WebFluxConfigurer {
+
+    @Override
+    public void addCorsMappings(CorsRegistry registry) {
+        registry.addMapping("/**")
+                .allowedOrigins(WebConfig.ALLOWED_ORIGINS)
+                .allowedMethods(WebConfig.ALLOWED_METHODS)
+                .allowedHeaders("*")
+                .exposedHeaders(WebConfig.EXPOSED_HEADERS);
+    }
+}
@@ -0,0 +1,270 @@
+package p2p.controller;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.http.codec.multipart.FilePartEvent;
+import org.springframework.http.codec.multipart.PartEvent;
+import org.springframework.web.reactive.function.BodyInserter;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+
+import p2p.config.StorageConfig;
+import p2p.service.ContentManifest;
+import p2p.service.EvictionManager;
+import p2p.service.FileRegistry;
+import p2p.service.FileStore;
+import p2p.service.PieceManifest;
+import p2p.service.SharedFile;
+import p2p.utils.ContentDisposition;
+import p2p.utils.HttpRange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * {@code POST /upload} and {@code GET /download/{id}} on Spring WebFlux, for
+ * the server mode chosen with {@code PEERLINK_SERVER=webflux} (see
+ * {@link p2p.config.ReactiveServerConfig}).
+ *
+ * Bodies are streams of DataBuffers with backpressure through to the disk:
+ * upload parts are hashed and written through an AsynchronousFileChannel as
+ * Netty hands them over, and downloads go out as file regions (sendfile)
+ * with Range support. No request holds a thread while it waits on the
+ * network; registry and store updates, which touch the disk, run on the
+ * bounded elastic scheduler.
+ *
+ * Shares live in the same upload directory as in the HttpServer mode, so
+ * either mode serves what the other stored. Only the core API is served
+ * here: upload sessions, batch and manifest downloads, compression, the
+ * hot-file cache, bandwidth shaping and /metrics stay with
+ * {@link FileController}.
+ */
+public class ReactiveFileController implements Closeable {
+
+    private static final Log logger = LogFactory.getLog(ReactiveFileController.class);
+    private static final MediaType OCTET_STREAM = MediaType.APPLICATION_OCTET_STREAM;
+
+    private final FileRegistry uploadedFiles;
+    private final FileStore fileStore;
+    private final EvictionManager eviction;
+    private final StorageConfig storageConfig;
+
+    public ReactiveFileController(Path uploadDir, StorageConfig storageConfig) throws IOException {
+        Files.createDirectories(uploadDir);
+        this.uploadedFiles = new FileRegistry(uploadDir);
+        this.fileStore = new FileStore(uploadDir);
+        fileStore.load(uploadedFiles);
+        this.storageConfig = storageConfig;
+        this.eviction = new EvictionManager(uploadedFiles, fileStore, storageConfig);
+        eviction.start();
+    }
+
+    public RouterFunction<ServerResponse> routes() {
+        return RouterFunctions.route()
+                .POST("/upload", this::upload)
+                .GET("/download/{id}", this::download)
+                .HEAD("/download/{id}", this::download)
+                .build();
+    }
+
+    @Override
+    public void close() throws IOException {
+        eviction.close();
+        uploadedFiles.close();
+    }
+
+    Mono<ServerResponse> upload(ServerRequest request) {
+        MediaType type = request.headers().contentType().orElse(null);
+        if (type == null || !MediaType.MULTIPART_FORM_DATA.isCompatibleWith(type)) {
+            return text(HttpStatus.BAD_REQUEST, "Bad Request: Content-Type must be multipart/form-data");
+        }
+
+        long expiresAt;
+        int maxDownloads;
+        try {
+            String ttl = request.queryParam("ttl").orElse("");
+            expiresAt = storageConfig.expiresAt(ttl.isEmpty() ? null : Long.parseLong(ttl), System.currentTimeMillis());
+            String max = request.queryParam("maxDownloads").orElse("");
+            maxDownloads = max.isEmpty() ? 0 : Integer.parseInt(max);
+        } catch (NumberFormatException e) {
+            return text(HttpStatus.BAD_REQUEST, "Bad Request: ttl and maxDownloads must be numbers");
+        }
+
+        // Parts are stored one after another; fields other than files are drained and dropped
+        List<SharedFile> writtenFiles = new CopyOnWriteArrayList<>();
+        return request.bodyToFlux(PartEvent.class)
+                .windowUntil(PartEvent::isLast)
+                .concatMap(part -> part.switchOnFirst((first, events) -> {
+                    if (first.hasValue() && first.get() instanceof FilePartEvent file) {
+                        return store(file, events, expiresAt, maxDownloads);
+                    }
+                    return events.doOnNext(event -> DataBufferUtils.release(event.content())).then(Mono.empty());
+                }))
+                .doOnNext(writtenFiles::add)
+                .then(Mono.defer(() -> writtenFiles.isEmpty()
+                        ? text(HttpStatus.BAD_REQUEST, "Bad Request: Could not parse file content")
+                        : register(writtenFiles)))
+                .onErrorResume(e -> {
+                    logError("Error parsing multipart data", e);
+                    return Mono.fromRunnable(() -> deleteFiles(writtenFiles))
+                            .subscribeOn(Schedulers.boundedElastic())
+                            .then(text(HttpStatus.BAD_REQUEST, "Bad Request: Could not parse file content"));
+                });
+    }
+
+    /** Streams one file part to a temp file, checksumming it on the way, and commits it to the store. */
+    private Mono<SharedFile> store(FilePartEvent part, Flux<PartEvent> events, long expiresAt, int maxDownloads) {
+        String filename = part.filename().isEmpty() ? "unnamed-file" : new File(part.filename()).getName();
+        MediaType partType = part.headers().getContentType();
+        String contentType = partType == null ? OCTET_STREAM.toString() : partType.toString();
+        ContentManifest.Builder manifest = new ContentManifest.Builder(PieceManifest.DEFAULT_PIECE_SIZE);
+
+        Flux<DataBuffer> content = events.map(PartEvent::content).doOnNext(buffer -> {
+            try (DataBuffer.ByteBufferIterator buffers = buffer.readableByteBuffers()) {
+                while (buffers.hasNext()) manifest.update(buffers.next());
+            }
+        });
+        return Mono.fromCallable(fileStore::createTempFile)
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(temp -> DataBufferUtils.write(content, temp)
+                        .then(Mono.fromCallable(() -> fileStore.commit(temp, manifest.build()))
+                                .subscribeOn(Schedulers.boundedElastic()))
+                        .onErrorResume(e -> Mono.fromCallable(() -> Files.deleteIfExists(temp))
+                                .subscribeOn(Schedulers.boundedElastic())
+                                .then(Mono.error(e))))
+                .map(stored -> new SharedFile(UUID.randomUUID().toString(), stored.getPath(), filename,
+                        stored.getSize(), contentType, stored.getDigest(), System.currentTimeMillis(),
+                        expiresAt, maxDownloads));
+    }
+
+    private Mono<ServerResponse> register(List<SharedFile> files) {
+        return Mono.fromCallable(() -> {
+                    for (SharedFile file : files) {
+                        uploadedFiles.put(file);
+                        eviction.track(file);
+                    }
+                    return FileController.uploadJson(files, fileStore);
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(json -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(json))
+                .onErrorResume(e -> {
+                    logError("Error processing file upload", e);
+                    return text(HttpStatus.INTERNAL_SERVER_ERROR, "Server error: " + e.getMessage());
+                });
+    }
+
+    private void deleteFiles(List<SharedFile> files) {
+        for (SharedFile file : files) {
+            try {
+                fileStore.release(file);
+            } catch (IOException e) {
+                logError("Error deleting " + file.getPath(), e);
+            }
+        }
+    }
+
+    Mono<ServerResponse> download(ServerRequest request) {
+        String fileId = request.pathVariable("id");
+        boolean head = request.method() == HttpMethod.HEAD;
+        List<SharedFile> spent = new CopyOnWriteArrayList<>();
+
+        return Mono.fromCallable(() -> {
+                    SharedFile sharedFile = uploadedFiles.get(fileId);
+                    File file = sharedFile == null ? null : new File(sharedFile.getPath());
+                    if (file == null || sharedFile.isExpired(System.currentTimeMillis()) || !file.isFile()) {
+                        return null;
+                    }
+                    if (head || HttpRange.matchesAny(request.headers().firstHeader("If-None-Match"), etag(sharedFile))) {
+                        return sharedFile;
+                    }
+                    // Every response with a body counts, ranged or not, as in the HttpServer mode
+                    List<org.springframework.http.HttpRange> ranges;
+                    try {
+                        ranges = request.headers().range();
+                    } catch (IllegalArgumentException e) {
+                        ranges = List.of(); // an unparseable Range is ignored and the whole file sent
+                    }
+                    long length = file.length();
+                    boolean sendsBody = ranges.isEmpty() || ranges.stream().anyMatch(range -> range.getRangeStart(length) < length);
+                    if (!sendsBody) return sharedFile;
+                    // A share left without downloads is removed only once its file has been sent
+                    List<SharedFile> admitted = eviction.admitDownloads(List.of(sharedFile));
+                    if (admitted == null) return null;
+                    spent.addAll(admitted);
+                    return sharedFile;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(sharedFile -> request.checkNotModified(etag(sharedFile))
+                        .doOnNext(notModified -> reclaimSpent(spent))
+                        .switchIfEmpty(Mono.defer(() -> sendFile(sharedFile, spent))))
+                .switchIfEmpty(Mono.defer(() -> text(HttpStatus.NOT_FOUND, "File not found")));
+    }
+
+    private Mono<ServerResponse> sendFile(SharedFile sharedFile, List<SharedFile> spent) {
+        File file = new File(sharedFile.getPath());
+        ServerResponse.BodyBuilder response = ServerResponse.ok()
+                .contentType(mediaType(sharedFile.getContentType()))
+                .eTag(etag(sharedFile))
+                .header("Last-Modified", HttpRange.httpDate(file.lastModified()))
+                .header("Content-Disposition", ContentDisposition.attachment(sharedFile.getFilename()));
+        String reprDigest = FileController.reprDigest(sharedFile, fileStore);
+        if (reprDigest != null) response.header("Repr-Digest", reprDigest);
+        // The resource writer answers Range requests with 206 and sends the file as a zero-copy region
+        BodyInserter<Resource, ReactiveHttpOutputMessage> body = BodyInserters.fromResource(new FileSystemResource(file));
+        return response.body((message, context) -> body.insert(message, context)
+                .doFinally(signal -> reclaimSpent(spent)));
+    }
+
+    private void reclaimSpent(List<SharedFile> spent) {
+        if (spent.isEmpty()) return;
+        Schedulers.boundedElastic().schedule(() -> eviction.reclaimSpent(spent));
+    }
+
+    /** Content-addressed files are tagged by their digest, as in {@link FileController}. */
+    private static String etag(SharedFile sharedFile) {
+        return sharedFile.getChecksum().isEmpty()
+                ? HttpRange.etag(new File(sharedFile.getPath()))
+                : "\"" + sharedFile.getChecksum() + "\"";
+    }
+
+    private static MediaType mediaType(String contentType) {
+        try {
+            return contentType == null || contentType.isEmpty() ? OCTET_STREAM : MediaType.parseMediaType(contentType);
+        } catch (InvalidMediaTypeException e) {
+            return OCTET_STREAM;
+        }
+    }
+
+    /**
+     * Errors are logged with their stack trace through Spring's logging, which
+     * this mode already runs, rather than printed as a bare message.
+     */
+    private static void logError(String message, Throwable e) {
+        logger.error(message + ": " + e.getMessage(), e);
+    }
+
+    private static Mono<ServerResponse> text(HttpStatus status, String message) {
+        return ServerResponse.status(status).contentType(MediaType.TEXT_PLAIN).bodyValue(message);
+    }
+}
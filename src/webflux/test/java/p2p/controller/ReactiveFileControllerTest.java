@@ -0,0 +1,158 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.web.reactive.context.ReactiveWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import p2p.config.ReactiveServerConfig;
+
+public class ReactiveFileControllerTest {
+
+    private static final String BOUNDARY = "----PeerLinkTestBoundary";
+    private static final Pattern FILE_ID = Pattern.compile("\\{\"id\": \"([^\"]+)\", \"filename\"");
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private ReactiveWebServerApplicationContext context;
+
+    @TempDir
+    Path uploadDir;
+
+    @BeforeEach
+    public void start() {
+        context = (ReactiveWebServerApplicationContext) ReactiveServerConfig.start(0, uploadDir);
+    }
+
+    @AfterEach
+    public void stop() {
+        context.close();
+    }
+
+    @Test
+    public void uploadedFilesCanBeDownloadedWholeAndInRanges() throws Exception {
+        byte[] notes = "streamed through DataBuffers".getBytes(StandardCharsets.UTF_8);
+        byte[] photo = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(photo);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"comment\"\r\n\r\nignored\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        part(body, "notes.txt", "text/plain", notes);
+        part(body, "photo.jpg", "image/jpeg", photo);
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        HttpResponse<String> upload = client.send(HttpRequest.newBuilder(uri("/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, upload.statusCode(), upload.body());
+
+        List<String> ids = new ArrayList<>();
+        Matcher matcher = FILE_ID.matcher(upload.body());
+        while (matcher.find()) ids.add(matcher.group(1));
+        assertEquals(2, ids.size(), upload.body());
+
+        HttpResponse<byte[]> whole = client.send(HttpRequest.newBuilder(uri("/download/" + ids.get(1))).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, whole.statusCode());
+        assertArrayEquals(photo, whole.body());
+        assertEquals("attachment; filename=\"photo.jpg\"; filename*=UTF-8''photo.jpg", whole.headers().firstValue("Content-Disposition").orElse(""));
+        assertTrue(whole.headers().firstValue("Repr-Digest").orElse("").startsWith("sha-256=:"));
+
+        HttpResponse<byte[]> range = client.send(HttpRequest.newBuilder(uri("/download/" + ids.get(1)))
+                .header("Range", "bytes=1000-1999").GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(206, range.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(photo, 1000, 2000), range.body());
+
+        HttpResponse<String> text = client.send(HttpRequest.newBuilder(uri("/download/" + ids.get(0))).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals("streamed through DataBuffers", text.body());
+
+        HttpResponse<String> missing = client.send(HttpRequest.newBuilder(uri("/download/nope")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, missing.statusCode());
+    }
+
+    @Test
+    public void theLastAllowedDownloadIsSentBeforeTheShareGoes() throws Exception {
+        byte[] notes = "only once".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        part(body, "notes.txt", "text/plain", notes);
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        HttpResponse<String> upload = client.send(HttpRequest.newBuilder(uri("/upload?maxDownloads=1"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build(), HttpResponse.BodyHandlers.ofString());
+        Matcher matcher = FILE_ID.matcher(upload.body());
+        assertTrue(matcher.find(), upload.body());
+
+        HttpResponse<byte[]> download = client.send(HttpRequest.newBuilder(uri("/download/" + matcher.group(1))).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, download.statusCode());
+        assertArrayEquals(notes, download.body());
+
+        HttpResponse<String> spent = client.send(HttpRequest.newBuilder(uri("/download/" + matcher.group(1))).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, spent.statusCode());
+    }
+
+    @Test
+    public void rangedResponsesCountAgainstTheDownloadLimit() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        part(body, "notes.txt", "text/plain", "0123456789".getBytes(StandardCharsets.US_ASCII));
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        HttpResponse<String> upload = client.send(HttpRequest.newBuilder(uri("/upload?maxDownloads=1"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build(), HttpResponse.BodyHandlers.ofString());
+        Matcher matcher = FILE_ID.matcher(upload.body());
+        assertTrue(matcher.find(), upload.body());
+
+        HttpRequest tail = HttpRequest.newBuilder(uri("/download/" + matcher.group(1))).header("Range", "bytes=1-").GET().build();
+        HttpResponse<String> first = client.send(tail, HttpResponse.BodyHandlers.ofString());
+        assertEquals(206, first.statusCode());
+        assertEquals("123456789", first.body());
+        assertEquals(404, client.send(tail, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    public void portZeroPicksAFreePortForEachServer(@TempDir Path otherUploadDir) {
+        try (ConfigurableApplicationContext other = ReactiveServerConfig.start(0, otherUploadDir)) {
+            int port = context.getWebServer().getPort();
+            int otherPort = ((ReactiveWebServerApplicationContext) other).getWebServer().getPort();
+            assertTrue(port > 0 && otherPort > 0);
+            assertNotEquals(port, otherPort);
+        }
+    }
+
+    private static void part(ByteArrayOutputStream body, String filename, String contentType, byte[] content)
+            throws IOException {
+        body.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(content);
+        body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + context.getWebServer().getPort() + path);
+    }
+}
@@ -58,8 +58,11 @@ export default function Home() {
 
       let filename = 'downloaded-file';
       if (contentDisposition) {
-        const match = contentDisposition.match(/filename="(.+)"/);
-        if (match && match.length === 2) filename = match[1];
+        // filename* holds the exact name; the quoted filename is an ASCII fallback
+        const extended = contentDisposition.match(/filename\*=UTF-8''([^;\s]+)/i);
+        const match = contentDisposition.match(/filename="([^"]+)"/);
+        if (extended) filename = decodeURIComponent(extended[1]);
+        else if (match) filename = match[1];
       }
 
       link.setAttribute('download', filename);